@@ -0,0 +1,68 @@
+import http from 'k6/http';
+import { check } from 'k6';
+import { Rate, Trend } from 'k6/metrics';
+
+// Compares the blocking JPA read path with the R2DBC one at increasing concurrency.
+// Both use a pool of 10 database connections (spring.datasource.hikari / spring.r2dbc.pool).
+// Pass existing emails, for example:
+//   EMAILS=$(psql -Atc "select email from users limit 1000" | paste -sd,) \
+//   docker compose run -e EMAILS=$EMAILS k6 run /scripts/user-orders-read.js
+
+const errorRate = new Rate('errors');
+const jpaTime = new Trend('execution_time_jpa');
+const reactiveTime = new Trend('execution_time_reactive');
+
+const stages = [
+    { duration: '10s', target: 10 },
+    { duration: '20s', target: 100 },
+    { duration: '20s', target: 400 },
+    { duration: '10s', target: 0 },
+];
+
+export const options = {
+    scenarios: {
+        jpa: {
+            executor: 'ramping-vus',
+            startVUs: 1,
+            stages: stages,
+            exec: 'jpa',
+            startTime: '0s',
+        },
+        reactive: {
+            executor: 'ramping-vus',
+            startVUs: 1,
+            stages: stages,
+            exec: 'reactive',
+            startTime: '70s',
+        },
+    },
+    thresholds: {
+        errors: ['rate<0.1'],
+    },
+};
+
+const BASE_URL = 'http://app:8080/api/orders';
+const EMAILS = (__ENV.EMAILS || 'unknown@example.com').split(',');
+
+function randomEmail() {
+    return EMAILS[Math.floor(Math.random() * EMAILS.length)];
+}
+
+function runRead(url, trend, headers) {
+    const response = http.get(url, { headers: headers, timeout: '60s' });
+    const success = check(response, {
+        'is status 200': (r) => r.status === 200,
+    });
+    errorRate.add(!success);
+    if (success) {
+        trend.add(response.timings.duration);
+    }
+}
+
+export function jpa() {
+    runRead(`${BASE_URL}/user/${randomEmail()}`, jpaTime, {});
+}
+
+export function reactive() {
+    runRead(`${BASE_URL}/reactive/user/${randomEmail()}`, reactiveTime, { Accept: 'application/x-ndjson' });
+}
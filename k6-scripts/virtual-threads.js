@@ -0,0 +1,70 @@
+import http from 'k6/http';
+import { check } from 'k6';
+import { Rate, Trend } from 'k6/metrics';
+
+// Runs the bulk insert and read endpoints at high concurrency. Run it once per thread mode and compare:
+//   VIRTUAL_THREADS=false docker compose up -d app && docker compose run -e MODE=platform k6 run /scripts/virtual-threads.js
+//   VIRTUAL_THREADS=true  docker compose up -d app && docker compose run -e MODE=virtual  k6 run /scripts/virtual-threads.js
+// Both modes share the same 10 Hikari connections, so hikaricp_connections_pending shows where requests queue,
+// and app_virtual_threads_pinned_seconds shows carrier threads pinned inside pgjdbc, Hikari or Hibernate.
+
+const MODE = __ENV.MODE || 'platform';
+const EMAILS = (__ENV.EMAILS || 'unknown@example.com').split(',');
+
+const errorRate = new Rate('errors');
+const bulkInsertTime = new Trend(`execution_time_bulk_insert_${MODE}`);
+const readTime = new Trend(`execution_time_read_${MODE}`);
+
+const stages = [
+    { duration: '10s', target: 50 },
+    { duration: '30s', target: 500 },
+    { duration: '20s', target: 500 },
+    { duration: '10s', target: 0 },
+];
+
+export const options = {
+    scenarios: {
+        bulk_insert: {
+            executor: 'ramping-vus',
+            startVUs: 1,
+            stages: stages,
+            exec: 'bulkInsert',
+            tags: { mode: MODE },
+        },
+        read: {
+            executor: 'ramping-vus',
+            startVUs: 1,
+            stages: stages,
+            exec: 'read',
+            tags: { mode: MODE },
+        },
+    },
+    thresholds: {
+        errors: ['rate<0.1'],
+    },
+};
+
+const BASE_URL = 'http://app:8080/api/orders';
+
+function record(response, trend) {
+    const success = check(response, {
+        'is status 200': (r) => r.status === 200,
+    });
+    errorRate.add(!success);
+    if (success) {
+        trend.add(response.timings.duration);
+    }
+}
+
+export function bulkInsert() {
+    const payload = JSON.stringify({ numberOfOrders: 10, itemsPerOrder: 3 });
+    record(http.post(`${BASE_URL}/bulk-inserts/single-transaction`, payload, {
+        headers: { 'Content-Type': 'application/json' },
+        timeout: '120s',
+    }), bulkInsertTime);
+}
+
+export function read() {
+    const email = EMAILS[Math.floor(Math.random() * EMAILS.length)];
+    record(http.get(`${BASE_URL}/user/${email}`, { timeout: '120s' }), readTime);
+}
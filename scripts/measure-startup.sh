@@ -0,0 +1,22 @@
+#!/bin/sh
+# Measures the time from container start until the readiness probe reports UP.
+# usage: scripts/measure-startup.sh [app|app-optimized]
+set -e
+SERVICE=${1:-app}
+PROFILE_ARGS=""
+[ "$SERVICE" = "app-optimized" ] && PROFILE_ARGS="--profile optimized"
+URL=${READINESS_URL:-http://localhost:8080/actuator/health/readiness}
+
+docker compose $PROFILE_ARGS up -d db
+docker compose $PROFILE_ARGS build "$SERVICE"
+docker compose $PROFILE_ARGS rm -sf "$SERVICE" >/dev/null
+
+start=$(date +%s%N)
+docker compose $PROFILE_ARGS up -d --no-deps "$SERVICE"
+until curl -sf "$URL" | grep -q '"UP"'; do
+    sleep 0.2
+done
+end=$(date +%s%N)
+
+echo "$SERVICE ready after $(( (end - start) / 1000000 )) ms"
+docker compose $PROFILE_ARGS logs "$SERVICE" | grep "Startup timing" | tail -1
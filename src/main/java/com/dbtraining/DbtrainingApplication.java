@@ -1,23 +1,38 @@
 package com.dbtraining;
 
 import com.dbtraining.init.DataLoader;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcAutoConfiguration;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 
-@SpringBootApplication
+// The R2DBC ConnectionFactory is owned by ReactiveOrderRepository: exposing it as a bean would make
+// Spring Boot back off from the JDBC DataSource and the JPA transaction manager
+@SpringBootApplication(exclude = R2dbcAutoConfiguration.class)
+@EnableConfigurationProperties(R2dbcProperties.class)
+@ConfigurationPropertiesScan
 public class DbtrainingApplication {
 
     public static void main(String[] args) {
         SpringApplication.run(DbtrainingApplication.class, args);
     }
 
+    // Checked at runtime instead of with @ConditionalOnProperty, which Spring AOT would evaluate at build time
     @Bean
-    @ConditionalOnProperty(name = "db.generate-data", havingValue = "true")
-    public ApplicationRunner startupRunner(DataLoader dataLoader) {
-        return args -> dataLoader.run();
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public ApplicationRunner startupRunner(DataLoader dataLoader, @Value("${db.generate-data:false}") boolean generateData) {
+        return args -> {
+            if (generateData) {
+                dataLoader.run();
+            }
+        };
     }
 
 }
@@ -0,0 +1,41 @@
+package com.dbtraining.controller;
+
+import com.dbtraining.service.OrderArchiveService;
+import com.dbtraining.service.OrderArchiveService.ArchiveRefusedException;
+import com.dbtraining.service.OrderArchiveService.ArchiveStatus;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ProblemDetail;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/api/orders/archive")
+public class OrderArchiveController {
+
+    private final OrderArchiveService archiveService;
+
+    public OrderArchiveController(OrderArchiveService archiveService) {
+        this.archiveService = archiveService;
+    }
+
+    @PostMapping
+    public ResponseEntity<?> startArchive() {
+        try {
+            return archiveService.startArchival()
+                    .map(status -> ResponseEntity.status(HttpStatus.ACCEPTED).body(status))
+                    .orElseGet(() -> ResponseEntity.status(HttpStatus.CONFLICT).body(archiveService.status()));
+        } catch (ArchiveRefusedException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(ProblemDetail.forStatusAndDetail(HttpStatus.CONFLICT, e.getMessage()));
+        }
+    }
+
+    @GetMapping
+    public ResponseEntity<ArchiveStatus> getArchive() {
+        var status = archiveService.status();
+        return status == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(status);
+    }
+}
@@ -2,18 +2,26 @@ package com.dbtraining.controller;
 
 import com.dbtraining.model.Order;
 import com.dbtraining.model.OrderItem;
+import com.dbtraining.monitoring.StrategyPhaseEvent;
 import com.dbtraining.repository.OrderItemRepository;
 import com.dbtraining.repository.OrderRepository;
 import com.dbtraining.repository.ProductRepository;
 import com.dbtraining.repository.UserRepository;
 import com.dbtraining.service.OrderService;
+import com.dbtraining.service.OrdersWrittenEvent;
+import com.dbtraining.sharding.ShardRouter;
+import com.dbtraining.workload.Workload;
 import jakarta.annotation.PostConstruct;
 import jakarta.persistence.EntityManager;
 import net.datafaker.Faker;
 import org.hibernate.Session;
 import org.postgresql.jdbc.PgConnection;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.http.ResponseEntity;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -22,11 +30,20 @@ import org.springframework.web.bind.annotation.RestController;
 import java.io.File;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import static com.dbtraining.init.DataLoader.FLAG_FILE_NAME;
+import static com.dbtraining.monitoring.StrategyPhaseEvent.BUILD_PAYLOAD;
+import static com.dbtraining.monitoring.StrategyPhaseEvent.EXECUTE;
+import static com.dbtraining.monitoring.StrategyPhaseEvent.GENERATE;
 
 @RestController
 @RequestMapping("/api/orders/bulk-inserts")
@@ -37,14 +54,19 @@ public class OrderBulkInsertsController {
     private final UserRepository userRepository;
     private final ProductRepository productRepository;
     private final EntityManager entityManager;
+    private final AsyncTaskExecutor taskExecutor;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Workload workload;
+    private final ShardRouter shardRouter;
+    private final TransactionTemplate transactionTemplate;
     private final Faker faker = new Faker();
     private final List<Long> existingUserIds = new ArrayList<>();
     private final List<Long> existingProductIds = new ArrayList<>();
-    private final Random random = new Random();
+    private CompletableFuture<Void> existingIdsLoaded;
 
     @PostConstruct
     public void waitForDataLoader() {
-        CompletableFuture.runAsync(() -> {
+        existingIdsLoaded = CompletableFuture.runAsync(() -> {
             while (!new File(FLAG_FILE_NAME).exists()) {
                 try {
                     Thread.sleep(100);
@@ -54,26 +76,59 @@ public class OrderBulkInsertsController {
                 }
             }
             initializeExistingIds();
-        });
+        }, taskExecutor);
     }
 
-    public OrderBulkInsertsController(OrderService orderService, OrderRepository orderRepository, OrderItemRepository orderItemRepository, UserRepository userRepository, ProductRepository productRepository, EntityManager entityManager) {
+    // The application task executor runs on virtual threads when spring.threads.virtual.enabled is set
+    public OrderBulkInsertsController(OrderService orderService, OrderRepository orderRepository, OrderItemRepository orderItemRepository, UserRepository userRepository, ProductRepository productRepository, EntityManager entityManager,
+                                      @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME) AsyncTaskExecutor taskExecutor,
+                                      ApplicationEventPublisher eventPublisher, Workload workload, ShardRouter shardRouter,
+                                      TransactionTemplate transactionTemplate) {
         this.orderService = orderService;
         this.orderRepository = orderRepository;
         this.orderItemRepository = orderItemRepository;
         this.userRepository = userRepository;
         this.productRepository = productRepository;
         this.entityManager = entityManager;
+        this.taskExecutor = taskExecutor;
+        this.eventPublisher = eventPublisher;
+        this.workload = workload;
+        this.shardRouter = shardRouter;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    public CompletableFuture<Void> existingIdsLoaded() {
+        return existingIdsLoaded;
     }
 
-    record BulkInsertRequest(int numberOfOrders, int itemsPerOrder) {}
+    /**
+     * @return {@code count} distinct product ids, at most every product, picked like the products of new orders
+     */
+    List<Long> randomDistinctProductIds(int count) {
+        existingIdsLoaded.join();
+        var size = existingProductIds.size();
+        count = Math.min(Math.max(count, 0), size);
+        var picked = new LinkedHashSet<Long>();
+        for (int attempts = 0; picked.size() < count && attempts < 10 * count; attempts++) {
+            picked.add(getRandomProductId());
+        }
+        // A skewed distribution keeps drawing the same hot products, the rest are taken in order from a random start
+        for (int i = ThreadLocalRandom.current().nextInt(size); picked.size() < count; i = (i + 1) % size) {
+            picked.add(existingProductIds.get(i));
+        }
+        return List.copyOf(picked);
+    }
+
+    public record BulkInsertRequest(int numberOfOrders, int itemsPerOrder) {}
     record BenchmarkResult(String strategy, int totalRecords, long executionTimeMs) {}
 
     @PostMapping("/multiple-transactions")
     public ResponseEntity<BenchmarkResult> insertWithMultipleTransactions(@RequestBody BulkInsertRequest request) {
         var startTime = System.currentTimeMillis();
+        var totalRecords = 0;
 
         for (int i = 0; i < request.numberOfOrders(); i++) {
+            var generate = StrategyPhaseEvent.begin("Multiple Transactions", "orders", GENERATE);
             // Create order with random user
             var user = userRepository.findById(getRandomUserId()).get();
             var order = new Order()
@@ -82,7 +137,8 @@ public class OrderBulkInsertsController {
 
             // Create order items with random products
             var items = new ArrayList<OrderItem>();
-            for (int j = 0; j < request.itemsPerOrder(); j++) {
+            var itemCount = workload.itemCount(request.itemsPerOrder());
+            for (int j = 0; j < itemCount; j++) {
                 var product = productRepository.findById(getRandomProductId()).get();
                 items.add(new OrderItem()
                         .setOrder(order)
@@ -90,96 +146,221 @@ public class OrderBulkInsertsController {
                         .setQuantity(faker.number().numberBetween(1, 10)));
             }
             order.setItems(items);
+            generate.finish(1 + itemCount);
 
-            // Save in a new transaction
+            // Save in a new transaction, the phase includes its commit
+            var execute = StrategyPhaseEvent.begin("Multiple Transactions", "orders", EXECUTE);
             orderService.insertSingleOrder(order);
+            execute.finish(1 + itemCount);
+            totalRecords += 1 + itemCount;
         }
 
         var executionTime = System.currentTimeMillis() - startTime;
         return ResponseEntity.ok(new BenchmarkResult(
                 "Multiple Transactions",
-                request.numberOfOrders() * (1 + request.itemsPerOrder()),
+                totalRecords,
                 executionTime
         ));
     }
 
-    @PostMapping("/single-transaction")
-    @Transactional
-    public ResponseEntity<BenchmarkResult> insertWithSingleTransaction(@RequestBody BulkInsertRequest request) {
+    @PostMapping("/placed-orders")
+    public ResponseEntity<BenchmarkResult> insertWithPlaceOrder(@RequestBody BulkInsertRequest request) {
         var startTime = System.currentTimeMillis();
+        var totalRecords = 0;
 
         for (int i = 0; i < request.numberOfOrders(); i++) {
-            // Create order with random user
-            var user = userRepository.findById(getRandomUserId()).get();
-            var order = new Order()
-                    .setOrderDate(LocalDateTime.now())
-                    .setUser(user);
+            var generate = StrategyPhaseEvent.begin("Placed Orders", "orders", GENERATE);
+            var order = new Order().setUser(userRepository.getReferenceById(getRandomUserId()));
+            var items = new ArrayList<OrderItem>();
+            var itemCount = workload.itemCount(request.itemsPerOrder());
+            for (int j = 0; j < itemCount; j++) {
+                items.add(new OrderItem()
+                        .setOrder(order)
+                        .setProduct(productRepository.getReferenceById(getRandomProductId()))
+                        .setQuantity(faker.number().numberBetween(1, 10)));
+            }
+            order.setItems(items);
+            generate.finish(1 + itemCount);
 
-            // Persist order first
-            orderRepository.save(order);
+            // User lock, a sequence call and an INSERT per row, each its own round trip
+            var execute = StrategyPhaseEvent.begin("Placed Orders", "orders", EXECUTE);
+            orderService.placeOrder(order);
+            execute.finish(1 + itemCount);
+            totalRecords += 1 + itemCount;
+        }
 
-            // Create and persist items
-            for (int j = 0; j < request.itemsPerOrder(); j++) {
-                var product = productRepository.findById(getRandomProductId()).get();
-                var item = new OrderItem()
-                        .setOrder(order)
-                        .setProduct(product)
-                        .setQuantity(faker.number().numberBetween(1, 10));
-                orderItemRepository.save(item);
+        var executionTime = System.currentTimeMillis() - startTime;
+        return ResponseEntity.ok(new BenchmarkResult(
+                "Placed Orders",
+                totalRecords,
+                executionTime
+        ));
+    }
+
+    @PostMapping("/single-statement-orders")
+    public ResponseEntity<BenchmarkResult> insertWithSingleStatementOrders(@RequestBody BulkInsertRequest request) {
+        var startTime = System.currentTimeMillis();
+        var totalRecords = 0;
+
+        for (int i = 0; i < request.numberOfOrders(); i++) {
+            var generate = StrategyPhaseEvent.begin("Single Statement Orders", "orders", GENERATE);
+            var userId = getRandomUserId();
+            var productRefs = new ArrayList<Long>();
+            var quantities = new ArrayList<Integer>();
+            var itemCount = workload.itemCount(request.itemsPerOrder());
+            for (int j = 0; j < itemCount; j++) {
+                productRefs.add(getRandomProductId());
+                quantities.add(faker.number().numberBetween(1, 10));
             }
+            generate.finish(1 + itemCount);
+
+            // Same lock and transaction as placeOrder, one statement for the order and its items
+            var execute = StrategyPhaseEvent.begin("Single Statement Orders", "orders", EXECUTE);
+            orderService.placeOrderInOneStatement(userId, productRefs, quantities);
+            execute.finish(1 + itemCount);
+            totalRecords += 1 + itemCount;
+        }
+
+        var executionTime = System.currentTimeMillis() - startTime;
+        return ResponseEntity.ok(new BenchmarkResult(
+                "Single Statement Orders",
+                totalRecords,
+                executionTime
+        ));
+    }
+
+    @PostMapping("/single-transaction")
+    public ResponseEntity<BenchmarkResult> insertWithSingleTransaction(@RequestBody BulkInsertRequest request) {
+        var startTime = System.currentTimeMillis();
+        var totalRecords = new AtomicInteger();
+        var userRefs = new ArrayList<Long>();
+        for (int i = 0; i < request.numberOfOrders(); i++) {
+            userRefs.add(getRandomUserId());
         }
 
+        // A single transaction per shard
+        inShardTransactions(ordersByShard(userRefs), (shard, orderIndexes) -> {
+            var shardRecords = 0;
+            for (int i : orderIndexes) {
+                // Create order with random user
+                var generate = StrategyPhaseEvent.begin("Single Transaction", "orders", GENERATE);
+                var user = userRepository.findById(userRefs.get(i)).get();
+                var order = new Order()
+                        .setOrderDate(LocalDateTime.now())
+                        .setUser(user);
+                generate.finish(1);
+
+                // Persist order first
+                var execute = StrategyPhaseEvent.begin("Single Transaction", "orders", EXECUTE);
+                orderRepository.save(order);
+                execute.finish(1);
+
+                // Create and persist items
+                var itemCount = workload.itemCount(request.itemsPerOrder());
+                shardRecords += 1 + itemCount;
+                for (int j = 0; j < itemCount; j++) {
+                    generate = StrategyPhaseEvent.begin("Single Transaction", "order_items", GENERATE);
+                    var product = productRepository.findById(getRandomProductId()).get();
+                    var item = new OrderItem()
+                            .setOrder(order)
+                            .setProduct(product)
+                            .setQuantity(faker.number().numberBetween(1, 10));
+                    generate.finish(1);
+
+                    execute = StrategyPhaseEvent.begin("Single Transaction", "order_items", EXECUTE);
+                    orderItemRepository.save(item);
+                    execute.finish(1);
+                }
+            }
+            eventPublisher.publishEvent(OrdersWrittenEvent.of(orderIndexes.stream().map(userRefs::get).toList()));
+            StrategyPhaseEvent.recordCommit("Single Transaction", "orders", shardRecords);
+            totalRecords.addAndGet(shardRecords);
+        });
+
         var executionTime = System.currentTimeMillis() - startTime;
         return ResponseEntity.ok(new BenchmarkResult(
                 "Single Transaction",
-                request.numberOfOrders() * (1 + request.itemsPerOrder()),
+                totalRecords.get(),
                 executionTime
         ));
     }
 
     @PostMapping("/batch-values")
-    @Transactional
     public ResponseEntity<BenchmarkResult> insertBatchValues(@RequestBody BulkInsertRequest request) {
         var startTime = System.currentTimeMillis();
 
-        var ordersSql = new StringBuilder("INSERT INTO orders (id, order_date, user_id) VALUES ");
-        var itemsSql = new StringBuilder("INSERT INTO order_items (id, quantity, order_id, product_id) VALUES ");
-
+        // Generate data
+        var generate = StrategyPhaseEvent.begin("Batch VALUES", "orders", GENERATE);
+        var orderDates = new ArrayList<LocalDateTime>();
+        var userRefs = new ArrayList<Long>();
+        var itemOffsets = new ArrayList<Integer>();
+        var quantities = new ArrayList<Integer>();
+        var productRefs = new ArrayList<Long>();
         for (int i = 0; i < request.numberOfOrders(); i++) {
-            // Generate order values
-            var userId = getRandomUserId();
-            if (i > 0) ordersSql.append(",");
-            ordersSql.append(String.format("(nextval('order_sequence'), '%s', %d)",
-                    LocalDateTime.now(),
-                    userId
-            ));
-
-            // Generate items values
-            for (int j = 0; j < request.itemsPerOrder(); j++) {
-                if (i > 0 || j > 0) itemsSql.append(",");
-                var productId = getRandomProductId();
-                var quantity = faker.number().numberBetween(1, 10);
-                itemsSql.append(String.format("(nextval('order_item_sequence'), %d, currval('order_sequence'), %d)",
-                        quantity,
-                        productId
-                ));
+            orderDates.add(LocalDateTime.now());
+            userRefs.add(getRandomUserId());
+
+            itemOffsets.add(productRefs.size());
+            var itemCount = workload.itemCount(request.itemsPerOrder());
+            for (int j = 0; j < itemCount; j++) {
+                productRefs.add(getRandomProductId());
+                quantities.add(faker.number().numberBetween(1, 10));
             }
         }
+        itemOffsets.add(productRefs.size());
+        var totalRecords = request.numberOfOrders() + productRefs.size();
+        generate.finish(totalRecords);
+
+        inShardTransactions(ordersByShard(userRefs), (shard, orderIndexes) -> {
+            var buildPayload = StrategyPhaseEvent.begin("Batch VALUES", "orders", BUILD_PAYLOAD);
+            var ordersSql = new StringBuilder("INSERT INTO orders (id, order_date, user_id) VALUES ");
+            var itemsSql = new StringBuilder("INSERT INTO order_items (id, quantity, order_id, product_id) VALUES ");
+
+            var itemRecords = 0;
+            for (int n = 0; n < orderIndexes.size(); n++) {
+                var i = orderIndexes.get(n);
+                // Order values
+                if (n > 0) ordersSql.append(",");
+                ordersSql.append(String.format("(nextval('order_sequence'), '%s', %d)",
+                        orderDates.get(i),
+                        userRefs.get(i)
+                ));
 
-        // Execute batch inserts
-        entityManager.createNativeQuery(ordersSql.toString()).executeUpdate();
-        entityManager.createNativeQuery(itemsSql.toString()).executeUpdate();
+                // Items values
+                for (int index = itemOffsets.get(i); index < itemOffsets.get(i + 1); index++) {
+                    if (itemRecords > 0) itemsSql.append(",");
+                    itemsSql.append(String.format("(nextval('order_item_sequence'), %d, currval('order_sequence'), %d)",
+                            quantities.get(index),
+                            productRefs.get(index)
+                    ));
+                    itemRecords++;
+                }
+            }
+            var shardRecords = orderIndexes.size() + itemRecords;
+            StrategyPhaseEvent.recordCommit("Batch VALUES", "orders", shardRecords);
+            buildPayload.finish(shardRecords);
+
+            // Execute batch inserts
+            var execute = StrategyPhaseEvent.begin("Batch VALUES", "orders", EXECUTE);
+            entityManager.createNativeQuery(ordersSql.toString()).executeUpdate();
+            execute.finish(orderIndexes.size());
+            execute = StrategyPhaseEvent.begin("Batch VALUES", "order_items", EXECUTE);
+            if (itemRecords > 0) {
+                entityManager.createNativeQuery(itemsSql.toString()).executeUpdate();
+            }
+            execute.finish(itemRecords);
+            eventPublisher.publishEvent(OrdersWrittenEvent.of(orderIndexes.stream().map(userRefs::get).toList()));
+        });
 
         var executionTime = System.currentTimeMillis() - startTime;
         return ResponseEntity.ok(new BenchmarkResult(
                 "Batch VALUES",
-                request.numberOfOrders() * (1 + request.itemsPerOrder()),
+                totalRecords,
                 executionTime
         ));
     }
 
     @PostMapping("/batch-unnest")
-    @Transactional
     public ResponseEntity<BenchmarkResult> insertBatchUnnest(@RequestBody BulkInsertRequest request) {
         var startTime = System.currentTimeMillis();
 
@@ -188,68 +369,129 @@ public class OrderBulkInsertsController {
         var userRefs = new ArrayList<Long>();
 
         // Prepare arrays for items
+        var itemOffsets = new ArrayList<Integer>();
         var quantities = new ArrayList<Integer>();
         var productRefs = new ArrayList<Long>();
 
         // Generate data
+        var generate = StrategyPhaseEvent.begin("Batch UNNEST", "orders", GENERATE);
         for (int i = 0; i < request.numberOfOrders(); i++) {
             orderDates.add(LocalDateTime.now());
             userRefs.add(getRandomUserId());
 
-            for (int j = 0; j < request.itemsPerOrder(); j++) {
+            itemOffsets.add(productRefs.size());
+            var itemCount = workload.itemCount(request.itemsPerOrder());
+            for (int j = 0; j < itemCount; j++) {
                 quantities.add(faker.number().numberBetween(1, 10));
                 productRefs.add(getRandomProductId());
             }
         }
-
-        // Execute UNNEST inserts
-        var session = entityManager.unwrap(Session.class);
-        session.doWork(connection -> {
-            var pgConn = connection.unwrap(PgConnection.class);
-
-            // Insert orders
-            var ordersSql = """
-                INSERT INTO orders (id, order_date, user_id)
-                SELECT nextval('order_sequence'), o.order_date, o.user_id
-                FROM UNNEST(?::timestamp[], ?::bigint[]) AS o(order_date, user_id)
-                """;
-
-            try (var ps = pgConn.prepareStatement(ordersSql)) {
-                ps.setArray(1, pgConn.createArrayOf("timestamp", orderDates.toArray()));
-                ps.setArray(2, pgConn.createArrayOf("bigint", userRefs.toArray()));
-                ps.executeUpdate();
+        itemOffsets.add(productRefs.size());
+        var totalRecords = request.numberOfOrders() + productRefs.size();
+        generate.finish(totalRecords);
+
+        inShardTransactions(ordersByShard(userRefs), (shard, orderIndexes) -> {
+            // Slice the arrays of this shard's orders
+            var shardOrderDates = new ArrayList<LocalDateTime>();
+            var shardUserRefs = new ArrayList<Long>();
+            var shardItemCounts = new ArrayList<Integer>();
+            var shardQuantities = new ArrayList<Integer>();
+            var shardProductRefs = new ArrayList<Long>();
+            for (int i : orderIndexes) {
+                shardOrderDates.add(orderDates.get(i));
+                shardUserRefs.add(userRefs.get(i));
+                shardItemCounts.add(itemOffsets.get(i + 1) - itemOffsets.get(i));
+                shardQuantities.addAll(quantities.subList(itemOffsets.get(i), itemOffsets.get(i + 1)));
+                shardProductRefs.addAll(productRefs.subList(itemOffsets.get(i), itemOffsets.get(i + 1)));
             }
+            var itemRecords = shardProductRefs.size();
+            StrategyPhaseEvent.recordCommit("Batch UNNEST", "orders", orderIndexes.size() + itemRecords);
+
+            // Execute UNNEST inserts
+            var session = entityManager.unwrap(Session.class);
+            session.doWork(connection -> {
+                var pgConn = connection.unwrap(PgConnection.class);
+
+                // Insert orders, their ids come back in array order for the items to reference
+                var ordersSql = """
+                    INSERT INTO orders (id, order_date, user_id)
+                    SELECT nextval('order_sequence'), o.order_date, o.user_id
+                    FROM UNNEST(?::timestamp[], ?::bigint[]) WITH ORDINALITY AS o(order_date, user_id, n)
+                    ORDER BY o.n
+                    RETURNING id
+                    """;
+                var itemOrderRefs = new ArrayList<Long>(itemRecords);
+
+                try (var ps = connection.prepareStatement(ordersSql)) {
+                    var buildPayload = StrategyPhaseEvent.begin("Batch UNNEST", "orders", BUILD_PAYLOAD);
+                    ps.setArray(1, pgConn.createArrayOf("timestamp", shardOrderDates.toArray()));
+                    ps.setArray(2, pgConn.createArrayOf("bigint", shardUserRefs.toArray()));
+                    buildPayload.finish(orderIndexes.size());
+
+                    var execute = StrategyPhaseEvent.begin("Batch UNNEST", "orders", EXECUTE);
+                    try (var rs = ps.executeQuery()) {
+                        for (int k = 0; rs.next(); k++) {
+                            itemOrderRefs.addAll(Collections.nCopies(shardItemCounts.get(k), rs.getLong(1)));
+                        }
+                    }
+                    execute.finish(orderIndexes.size());
+                }
 
-            // Insert items
-            var itemsSql = """
-                INSERT INTO order_items (id, quantity, order_id, product_id)
-                SELECT nextval('order_item_sequence'), oi.quantity, oi.order_id, oi.product_id
-                FROM UNNEST(?::integer[], ?::bigint[], ?::bigint[])\s
-                AS oi(quantity, order_id, product_id)
-                """;
-
-            try (var ps = pgConn.prepareStatement(itemsSql)) {
-                ps.setArray(1, pgConn.createArrayOf("bigint", quantities.toArray()));
-                ps.setArray(2, pgConn.createArrayOf("bigint", quantities.toArray()));
-                ps.setArray(3, pgConn.createArrayOf("bigint", productRefs.toArray()));
-                ps.executeUpdate();
-            }
+                // Insert items
+                var itemsSql = """
+                    INSERT INTO order_items (id, quantity, order_id, product_id)
+                    SELECT nextval('order_item_sequence'), oi.quantity, oi.order_id, oi.product_id
+                    FROM UNNEST(?::integer[], ?::bigint[], ?::bigint[])\s
+                    AS oi(quantity, order_id, product_id)
+                    """;
+
+                try (var ps = connection.prepareStatement(itemsSql)) {
+                    var buildPayload = StrategyPhaseEvent.begin("Batch UNNEST", "order_items", BUILD_PAYLOAD);
+                    ps.setArray(1, pgConn.createArrayOf("bigint", shardQuantities.toArray()));
+                    ps.setArray(2, pgConn.createArrayOf("bigint", itemOrderRefs.toArray()));
+                    ps.setArray(3, pgConn.createArrayOf("bigint", shardProductRefs.toArray()));
+                    buildPayload.finish(itemRecords);
+
+                    var execute = StrategyPhaseEvent.begin("Batch UNNEST", "order_items", EXECUTE);
+                    ps.executeUpdate();
+                    execute.finish(itemRecords);
+                }
+            });
+            eventPublisher.publishEvent(OrdersWrittenEvent.of(shardUserRefs));
         });
 
         var executionTime = System.currentTimeMillis() - startTime;
         return ResponseEntity.ok(new BenchmarkResult(
                 "Batch UNNEST",
-                request.numberOfOrders() * (1 + request.itemsPerOrder()),
+                totalRecords,
                 executionTime
         ));
     }
 
+    // Indexes of the requested orders grouped by the shard of their user, in request order
+    private Map<Integer, List<Integer>> ordersByShard(List<Long> userRefs) {
+        var ordersByShard = new TreeMap<Integer, List<Integer>>();
+        for (int i = 0; i < userRefs.size(); i++) {
+            ordersByShard.computeIfAbsent(shardRouter.shardOf(userRefs.get(i)), shard -> new ArrayList<>()).add(i);
+        }
+        return ordersByShard;
+    }
+
+    // One transaction per shard, the shards are written in parallel. Unsharded this is the one transaction it always was
+    private void inShardTransactions(Map<Integer, List<Integer>> ordersByShard, BiConsumer<Integer, List<Integer>> work) {
+        shardRouter.onShards(ordersByShard.keySet(), shard -> transactionTemplate.execute(status -> {
+            work.accept(shard, ordersByShard.get(shard));
+            return null;
+        }));
+    }
+
     private void initializeExistingIds() {
         // Cache existing user IDs
         existingUserIds.addAll(entityManager.createNativeQuery("SELECT id FROM users")
                 .getResultList()
                 .stream()
                 .map(id -> ((Number) id).longValue())
+                .sorted()
                 .toList());
 
         if (existingUserIds.isEmpty()) {
@@ -261,6 +503,7 @@ public class OrderBulkInsertsController {
                 .getResultList()
                 .stream()
                 .map(id -> ((Number) id).longValue())
+                .sorted()
                 .toList());
 
         if (existingProductIds.isEmpty()) {
@@ -268,12 +511,13 @@ public class OrderBulkInsertsController {
         }
     }
 
+    // Sorted ids, so index i is the same user or product the DataLoader generated with id i + 1
     private Long getRandomUserId() {
-        return existingUserIds.get(random.nextInt(existingUserIds.size()));
+        return existingUserIds.get(workload.userIndex(existingUserIds.size()));
     }
 
     private Long getRandomProductId() {
-        return existingProductIds.get(random.nextInt(existingProductIds.size()));
+        return existingProductIds.get(workload.productIndex(existingProductIds.size()));
     }
 
 }
\ No newline at end of file
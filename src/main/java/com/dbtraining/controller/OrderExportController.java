@@ -0,0 +1,45 @@
+package com.dbtraining.controller;
+
+import com.dbtraining.service.OrderExportService;
+import com.dbtraining.service.OrderExportService.ExportStatus;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDate;
+import java.util.regex.Pattern;
+
+@RestController
+@RequestMapping("/api/orders/export")
+public class OrderExportController {
+
+    private static final Pattern EXPORT_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private final OrderExportService exportService;
+
+    public OrderExportController(OrderExportService exportService) {
+        this.exportService = exportService;
+    }
+
+    // Starting an export with the name of an unfinished one resumes it, defaults to one export per day
+    @PostMapping
+    public ResponseEntity<ExportStatus> startExport(@RequestParam(name = "name", required = false) String name) {
+        var exportName = name == null ? "orders-" + LocalDate.now() : name;
+        if (!EXPORT_NAME.matcher(exportName).matches() || exportName.startsWith(".")) {
+            return ResponseEntity.badRequest().build();
+        }
+        return exportService.start(exportName)
+                .map(status -> ResponseEntity.status(HttpStatus.ACCEPTED).body(status))
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.CONFLICT).body(exportService.status()));
+    }
+
+    @GetMapping
+    public ResponseEntity<ExportStatus> getExport() {
+        var status = exportService.status();
+        return status == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(status);
+    }
+}
@@ -0,0 +1,32 @@
+package com.dbtraining.controller;
+
+import com.dbtraining.service.OrderIngestService;
+import com.dbtraining.service.OrderIngestService.IngestResult;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+@RestController
+@RequestMapping("/api/orders/ingest")
+public class OrderIngestController {
+
+    private final OrderIngestService ingestService;
+
+    public OrderIngestController(OrderIngestService ingestService) {
+        this.ingestService = ingestService;
+    }
+
+    // One order per line: {"userId": 1, "orderDate": "2024-11-02T10:15:00", "items": [{"productId": 7, "quantity": 2}]}
+    @PostMapping(consumes = {"application/x-ndjson", "application/jsonl", "application/json", "text/plain"})
+    public ResponseEntity<IngestResult> ingest(InputStream body) throws IOException {
+        var result = ingestService.ingest(body);
+        // Partly loaded: the body tells which shards have the orders
+        return result.failedShards().isEmpty() ? ResponseEntity.ok(result)
+                : ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(result);
+    }
+}
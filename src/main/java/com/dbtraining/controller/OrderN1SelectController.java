@@ -3,11 +3,16 @@ package com.dbtraining.controller;
 import com.dbtraining.model.Order;
 import com.dbtraining.model.OrderItem;
 import com.dbtraining.repository.OrderRepository;
+import com.dbtraining.repository.UserRepository;
+import com.dbtraining.sharding.ShardRouter;
 import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -18,26 +23,67 @@ import java.util.List;
 public class OrderN1SelectController {
 
     private final OrderRepository orderRepository;
+    private final UserRepository userRepository;
+    private final OrderSummaryCache summaryCache;
+    private final ShardRouter shardRouter;
+    private final TransactionTemplate readOnlyTransactionTemplate;
 
-    public OrderN1SelectController(OrderRepository orderRepository) {
+    public OrderN1SelectController(OrderRepository orderRepository, UserRepository userRepository, OrderSummaryCache summaryCache,
+                                   ShardRouter shardRouter, PlatformTransactionManager transactionManager) {
         this.orderRepository = orderRepository;
+        this.userRepository = userRepository;
+        this.summaryCache = summaryCache;
+        this.shardRouter = shardRouter;
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
     }
 
     record OrderSummaryDTO(Long id, LocalDateTime orderDate, int numberOfItems, double totalAmount) {}
 
     @GetMapping("/user/{email}")
-    public ResponseEntity<List<OrderSummaryDTO>> getUserOrders(@PathVariable("email") String email) {
-        List<Order> orders = orderRepository.findByUserEmail(email);
+    public ResponseEntity<List<OrderSummaryDTO>> getUserOrders(@PathVariable("email") String email, WebRequest request) {
+        var cached = summaryCache.get(email, this::loadSummaries);
+        if (cached.isEmpty()) {
+            return ResponseEntity.ok(List.of());
+        }
+        // Answers 304 Not Modified when If-None-Match still matches
+        if (request.checkNotModified(cached.get().etag())) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .eTag(cached.get().etag())
+                .body(cached.get().summaries());
+    }
+
+    public List<OrderSummaryDTO> loadSummaries(String email) {
+        if (shardRouter.shardCount() == 1) {
+            return summarize(orderRepository.findByUserEmail(email));
+        }
+        // Emails repeat, so their users may live on different shards. The lazy loads below need a transaction on each
+        // of them, open-in-view is off when sharding
+        var shards = userRepository.findIdsByEmail(email).stream()
+                .map(shardRouter::shardOf)
+                .distinct()
+                .sorted()
+                .toList();
+        if (shards.isEmpty()) {
+            return List.of();
+        }
+        return shardRouter.onShards(shards, shard -> readOnlyTransactionTemplate.execute(status ->
+                        summarize(orderRepository.findByUserEmail(email))))
+                .stream()
+                .flatMap(List::stream)
+                .toList();
+    }
 
-        List<OrderSummaryDTO> summaries = orders.stream()
+    private List<OrderSummaryDTO> summarize(List<Order> orders) {
+        return orders.stream()
                 .map(order -> new OrderSummaryDTO(
                         order.id(),
                         order.orderDate(),
                         order.items().size(), // This lazy loading triggers additional queries
                         calculateOrderTotal(order.items())))
                 .toList();
-
-        return ResponseEntity.ok(summaries);
     }
 
     private double calculateOrderTotal(List<OrderItem> items) {
@@ -0,0 +1,32 @@
+package com.dbtraining.controller;
+
+import com.dbtraining.controller.OrderN1SelectController.OrderSummaryDTO;
+import com.dbtraining.repository.ReactiveOrderRepository;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+
+@RestController
+@RequestMapping("/api/orders/reactive")
+public class OrderReactiveSelectController {
+
+    private final ReactiveOrderRepository reactiveOrderRepository;
+
+    public OrderReactiveSelectController(ReactiveOrderRepository reactiveOrderRepository) {
+        this.reactiveOrderRepository = reactiveOrderRepository;
+    }
+
+    // Streamed as NDJSON while rows arrive; the servlet thread is released until the database answers
+    @GetMapping(value = "/user/{email}", produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public Flux<OrderSummaryDTO> getUserOrders(@PathVariable("email") String email) {
+        return reactiveOrderRepository.findOrderSummariesByUserEmail(email)
+                .map(summary -> new OrderSummaryDTO(
+                        summary.id(),
+                        summary.orderDate(),
+                        summary.numberOfItems(),
+                        summary.totalAmount()));
+    }
+}
@@ -0,0 +1,174 @@
+package com.dbtraining.controller;
+
+import com.dbtraining.controller.OrderN1SelectController.OrderSummaryDTO;
+import com.dbtraining.repository.UserRepository;
+import com.dbtraining.service.OrdersWrittenEvent;
+import com.dbtraining.service.ProductsRepricedEvent;
+import com.dbtraining.service.SingleFlight;
+import com.dbtraining.service.SingleFlightProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Order summaries per email with their ETag, plus a negative cache of emails that have no user so those never reach
+ * the database. Emails are not unique: an entry holds the orders of every user with its email and is dropped once a
+ * transaction writing orders for any of them has committed, and all entries once a transaction changing product
+ * prices has.
+ */
+@Component
+public class OrderSummaryCache {
+
+    private static final Duration INVALIDATION_WINDOW = Duration.ofMinutes(5);
+
+    private final OrderSummaryCacheProperties properties;
+    private final UserRepository userRepository;
+    private final Cache<String, Entry> entries;
+    // Emails of the entries of each user, a superset: entries replaced or removed may leave their emails behind
+    private final Map<Long, Set<String>> emailsByUser = new ConcurrentHashMap<>();
+    private final Cache<String, Boolean> unknownEmails;
+    // Last invalidation per user, lets a load that overlapped with a write throw its result away
+    private final Cache<Long, Long> invalidations;
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final AtomicLong repricings = new AtomicLong();
+    // Misses for the same email wait for the load already running
+    private final SingleFlight<String, Optional<Entry>> loads;
+    // Users of each email being loaded, once known
+    private final Map<String, List<Long>> loadingUsers = new ConcurrentHashMap<>();
+
+    record Entry(List<Long> userIds, List<OrderSummaryDTO> summaries, String etag) {
+    }
+
+    public OrderSummaryCache(OrderSummaryCacheProperties properties, UserRepository userRepository,
+                             SingleFlightProperties singleFlightProperties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.userRepository = userRepository;
+        this.entries = Caffeine.newBuilder()
+                .maximumSize(properties.maximumSize())
+                .expireAfterWrite(properties.timeToLive())
+                .evictionListener((String email, Entry entry, RemovalCause cause) -> unindex(email, entry))
+                .recordStats()
+                .build();
+        this.unknownEmails = Caffeine.newBuilder()
+                .maximumSize(properties.maximumSize())
+                .expireAfterWrite(properties.negativeTimeToLive())
+                .recordStats()
+                .build();
+        this.invalidations = Caffeine.newBuilder()
+                .expireAfterWrite(INVALIDATION_WINDOW)
+                .build();
+        this.loads = new SingleFlight<>("order-summaries", singleFlightProperties, meterRegistry);
+        CaffeineCacheMetrics.monitor(meterRegistry, entries, "order-summaries");
+        CaffeineCacheMetrics.monitor(meterRegistry, unknownEmails, "order-summaries-unknown-emails");
+    }
+
+    /**
+     * @return the summaries of the user with this email, or empty when there is no such user
+     */
+    Optional<Entry> get(String email, Function<String, List<OrderSummaryDTO>> loader) {
+        if (!properties.enabled()) {
+            return Optional.of(entry(List.of(), loader.apply(email)));
+        }
+        Entry cached = entries.getIfPresent(email);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        if (unknownEmails.getIfPresent(email) != null) {
+            return Optional.empty();
+        }
+        // Before any query: under open-in-view a request keeps its connection from the first query on, even while waiting
+        return loads.execute(email, () -> load(email, loader));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onOrdersWritten(OrdersWrittenEvent event) {
+        // Loads are forgotten first: a load that sees the new invalidation is then sure to have started afresh
+        loadingUsers.forEach((email, userIds) -> {
+            if (userIds.stream().anyMatch(event.userIds()::contains)) {
+                loads.forget(email);
+            }
+        });
+        long invalidation = invalidationCount.incrementAndGet();
+        for (Long userId : event.userIds()) {
+            invalidations.put(userId, invalidation);
+            Set<String> emails = emailsByUser.remove(userId);
+            if (emails != null) {
+                entries.invalidateAll(emails);
+            }
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onProductsRepriced(ProductsRepricedEvent event) {
+        // Finding the summaries that contain one of the products would cost more than reloading them
+        loads.forgetAll();
+        repricings.incrementAndGet();
+        entries.invalidateAll();
+        emailsByUser.clear();
+    }
+
+    private Optional<Entry> load(String email, Function<String, List<OrderSummaryDTO>> loader) {
+        List<Long> userIds = userRepository.findIdsByEmail(email);
+        if (userIds.isEmpty()) {
+            unknownEmails.put(email, Boolean.TRUE);
+            return Optional.empty();
+        }
+
+        loadingUsers.put(email, userIds);
+        try {
+            List<Long> invalidatedBefore = userIds.stream().map(invalidations::getIfPresent).toList();
+            long repricingsBefore = repricings.get();
+            Entry entry = entry(userIds, loader.apply(email));
+            entries.put(email, entry);
+            // After the put, so an eviction of the entry replaced cannot unindex this one
+            userIds.forEach(userId -> emailsByUser.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(email));
+            // Orders written or prices changed while loading: the invalidation may have run before the put, so undo it here
+            if (!Objects.equals(invalidatedBefore, userIds.stream().map(invalidations::getIfPresent).toList())
+                    || repricingsBefore != repricings.get()) {
+                entries.asMap().remove(email, entry);
+            }
+            return Optional.of(entry);
+        } finally {
+            loadingUsers.remove(email, userIds);
+        }
+    }
+
+    private void unindex(String email, Entry entry) {
+        for (Long userId : entry.userIds()) {
+            emailsByUser.computeIfPresent(userId, (id, emails) -> {
+                emails.remove(email);
+                return emails.isEmpty() ? null : emails;
+            });
+        }
+    }
+
+    private static Entry entry(List<Long> userIds, List<OrderSummaryDTO> summaries) {
+        return new Entry(userIds, summaries, "\"" + sha256(summaries.toString()) + "\"");
+    }
+
+    private static String sha256(String content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
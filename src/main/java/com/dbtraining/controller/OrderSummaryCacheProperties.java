@@ -0,0 +1,17 @@
+package com.dbtraining.controller;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.summary-cache")
+public record OrderSummaryCacheProperties(
+        @DefaultValue("true") boolean enabled,
+        // Users whose order summaries are kept, least recently used are evicted first
+        @DefaultValue("10000") long maximumSize,
+        // Safety net only, entries are invalidated when orders are written for the user
+        @DefaultValue("10m") Duration timeToLive,
+        // How long an email without a user is answered from memory
+        @DefaultValue("30s") Duration negativeTimeToLive) {
+}
@@ -0,0 +1,230 @@
+package com.dbtraining.controller;
+
+import com.dbtraining.model.Product;
+import com.dbtraining.monitoring.StatementCapture;
+import com.dbtraining.repository.ProductRepository;
+import jakarta.persistence.EntityManager;
+import org.hibernate.Session;
+import org.postgresql.PGConnection;
+import org.springframework.http.ResponseEntity;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads a set of products by id with an IN list, an array parameter, a temporary table join, Hibernate's multi-load
+ * and a keyset scan. Each run reports the statements it issued and how many of their texts the strategy had not
+ * issued before: PostgreSQL only reuses the plan of a prepared statement for the same text, and pgjdbc only prepares
+ * a text on the server once a connection has executed it prepareThreshold times.
+ */
+@RestController
+@RequestMapping("/api/products/bulk-reads")
+public class ProductBulkReadsController {
+
+    private static final int[] SWEEP_SIZES = {10, 100, 1_000, 10_000, 100_000};
+    // pgjdbc sends the parameter count as a 16 bit integer
+    private static final int MAX_BIND_PARAMETERS = 32_767;
+    private static final int DEFAULT_PAGE_SIZE = 1_000;
+
+    private final OrderBulkInsertsController orderBulkInsertsController;
+    private final ProductRepository productRepository;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    // Hashes of the statement texts each strategy has issued since startup
+    private final Map<String, Set<Integer>> issuedSql = new ConcurrentHashMap<>();
+
+    public ProductBulkReadsController(OrderBulkInsertsController orderBulkInsertsController, ProductRepository productRepository,
+                                      EntityManager entityManager, TransactionTemplate transactionTemplate) {
+        this.orderBulkInsertsController = orderBulkInsertsController;
+        this.productRepository = productRepository;
+        this.entityManager = entityManager;
+        // Not read-only, PostgreSQL refuses to create the temporary table in a read-only transaction
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * @param batchSize ids per multi-load or rows per keyset page, all ids respectively 1000 when absent
+     */
+    public record BulkReadRequest(int numberOfIds, @Nullable Integer batchSize) {}
+    record ReadResult(String strategy, int requestedIds, int rowsFound, long executionTimeMs, int statements,
+                      int distinctSql, int newSql, long serverPreparedStatements) {}
+
+    interface ReadStrategy {
+        List<Product> load(List<Long> ids, @Nullable Integer batchSize, StatementCapture.Capture capture);
+    }
+
+    @PostMapping("/in-list")
+    public ResponseEntity<ReadResult> readWithInList(@RequestBody BulkReadRequest request) {
+        return ResponseEntity.ok(run("IN List", this::inList, request));
+    }
+
+    @PostMapping("/any-array")
+    public ResponseEntity<ReadResult> readWithAnyArray(@RequestBody BulkReadRequest request) {
+        return ResponseEntity.ok(run("ANY Array", this::anyArray, request));
+    }
+
+    @PostMapping("/temp-table")
+    public ResponseEntity<ReadResult> readWithTempTable(@RequestBody BulkReadRequest request) {
+        return ResponseEntity.ok(run("Temp Table Join", this::tempTable, request));
+    }
+
+    @PostMapping("/multi-load")
+    public ResponseEntity<ReadResult> readWithMultiLoad(@RequestBody BulkReadRequest request) {
+        return ResponseEntity.ok(run("Multi-Load", this::multiLoad, request));
+    }
+
+    @PostMapping("/keyset")
+    public ResponseEntity<ReadResult> readWithKeysetScan(@RequestBody BulkReadRequest request) {
+        return ResponseEntity.ok(run("Keyset Scan", this::keysetScan, request));
+    }
+
+    /**
+     * Every strategy for 10 up to 100k ids, all strategies reading the same ids per size.
+     */
+    @PostMapping("/sweep")
+    public ResponseEntity<List<ReadResult>> sweep(@RequestBody(required = false) @Nullable BulkReadRequest request) {
+        var batchSize = request != null ? request.batchSize() : null;
+        var strategies = new LinkedHashMap<String, ReadStrategy>();
+        strategies.put("IN List", this::inList);
+        strategies.put("ANY Array", this::anyArray);
+        strategies.put("Temp Table Join", this::tempTable);
+        strategies.put("Multi-Load", this::multiLoad);
+        strategies.put("Keyset Scan", this::keysetScan);
+
+        var results = new ArrayList<ReadResult>();
+        for (int size : SWEEP_SIZES) {
+            var ids = orderBulkInsertsController.randomDistinctProductIds(size);
+            strategies.forEach((name, strategy) -> results.add(run(name, strategy, ids, batchSize)));
+        }
+        return ResponseEntity.ok(results);
+    }
+
+    private ReadResult run(String name, ReadStrategy strategy, BulkReadRequest request) {
+        return run(name, strategy, orderBulkInsertsController.randomDistinctProductIds(request.numberOfIds()), request.batchSize());
+    }
+
+    private ReadResult run(String name, ReadStrategy strategy, List<Long> ids, @Nullable Integer batchSize) {
+        return transactionTemplate.execute(status -> {
+            // Products loaded by an earlier run of this request would come from the persistence context
+            entityManager.clear();
+            List<Product> products;
+            List<String> statements;
+            var startTime = System.currentTimeMillis();
+            try (var capture = StatementCapture.start()) {
+                products = strategy.load(ids, batchSize, capture);
+                statements = capture.statements();
+            }
+            var executionTime = System.currentTimeMillis() - startTime;
+
+            var issued = issuedSql.computeIfAbsent(name, key -> ConcurrentHashMap.newKeySet());
+            var distinct = new HashSet<Integer>();
+            var newSql = 0;
+            for (String sql : statements) {
+                if (distinct.add(sql.hashCode()) && issued.add(sql.hashCode())) {
+                    newSql++;
+                }
+            }
+            // Statements this connection has prepared on the server so far, pgjdbc keeps them across transactions
+            var serverPrepared = ((Number) entityManager.createNativeQuery("SELECT count(*) FROM pg_prepared_statements")
+                    .getSingleResult()).longValue();
+            entityManager.clear();
+            return new ReadResult(name, ids.size(), products.size(), executionTime, statements.size(),
+                    distinct.size(), newSql, serverPrepared);
+        });
+    }
+
+    // One placeholder per id, so every set size is a different statement. Split where the bind limit would be exceeded
+    private List<Product> inList(List<Long> ids, @Nullable Integer batchSize, StatementCapture.Capture capture) {
+        var products = new ArrayList<Product>(ids.size());
+        for (int from = 0; from < ids.size(); from += MAX_BIND_PARAMETERS) {
+            productRepository.findAllById(ids.subList(from, Math.min(from + MAX_BIND_PARAMETERS, ids.size())))
+                    .forEach(products::add);
+        }
+        return products;
+    }
+
+    // One statement text whatever the number of ids
+    @SuppressWarnings("unchecked")
+    private List<Product> anyArray(List<Long> ids, @Nullable Integer batchSize, StatementCapture.Capture capture) {
+        return entityManager.createNativeQuery("SELECT * FROM products WHERE id = ANY(:ids)", Product.class)
+                .setParameter("ids", ids.toArray(Long[]::new))
+                .getResultList();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Product> tempTable(List<Long> ids, @Nullable Integer batchSize, StatementCapture.Capture capture) {
+        entityManager.createNativeQuery("CREATE TEMP TABLE product_read_ids (id bigint PRIMARY KEY) ON COMMIT DROP").executeUpdate();
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            var rows = new StringBuilder();
+            ids.forEach(id -> rows.append(id).append('\n'));
+            var payload = rows.toString().getBytes(StandardCharsets.UTF_8);
+            var sql = "COPY product_read_ids FROM STDIN";
+            capture.record(sql);
+            var copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+            copy.writeToCopy(payload, 0, payload.length);
+            copy.endCopy();
+        });
+        // Without statistics the planner guesses the size of the temporary table
+        entityManager.createNativeQuery("ANALYZE product_read_ids").executeUpdate();
+        return entityManager.createNativeQuery("SELECT p.* FROM products p JOIN product_read_ids r ON r.id = p.id", Product.class)
+                .getResultList();
+    }
+
+    // On PostgreSQL Hibernate binds all ids as one array and ignores withBatchSize, so batches are loaded one by one
+    private List<Product> multiLoad(List<Long> ids, @Nullable Integer batchSize, StatementCapture.Capture capture) {
+        var session = entityManager.unwrap(Session.class);
+        var chunk = batchSize != null ? Math.max(1, batchSize) : Math.max(1, ids.size());
+        var products = new ArrayList<Product>(ids.size());
+        for (int from = 0; from < ids.size(); from += chunk) {
+            session.byMultipleIds(Product.class)
+                    .multiLoad(ids.subList(from, Math.min(from + chunk, ids.size())))
+                    .stream()
+                    .filter(product -> product != null)
+                    .forEach(products::add);
+        }
+        return products;
+    }
+
+    // Pages through the products in id order between the smallest and largest id, keeping the requested ones
+    private List<Product> keysetScan(List<Long> ids, @Nullable Integer batchSize, StatementCapture.Capture capture) {
+        var products = new ArrayList<Product>(ids.size());
+        if (ids.isEmpty()) {
+            return products;
+        }
+        var wanted = Set.copyOf(ids);
+        var pageSize = batchSize != null ? Math.max(1, batchSize) : DEFAULT_PAGE_SIZE;
+        var last = ids.stream().mapToLong(Long::longValue).max().getAsLong();
+        var after = ids.stream().mapToLong(Long::longValue).min().getAsLong() - 1;
+        while (after < last) {
+            var page = entityManager.createQuery("SELECT p FROM Product p WHERE p.id > :after AND p.id <= :last ORDER BY p.id", Product.class)
+                    .setParameter("after", after)
+                    .setParameter("last", last)
+                    .setMaxResults(pageSize)
+                    .getResultList();
+            if (page.isEmpty()) {
+                break;
+            }
+            for (Product product : page) {
+                if (wanted.contains(product.id())) {
+                    products.add(product);
+                }
+            }
+            after = page.get(page.size() - 1).id();
+            // The persistence context would otherwise hold every product scanned
+            entityManager.clear();
+        }
+        return products;
+    }
+}
@@ -0,0 +1,278 @@
+package com.dbtraining.controller;
+
+import com.dbtraining.model.Product;
+import com.dbtraining.monitoring.StrategyPhaseEvent;
+import com.dbtraining.service.ProductsRepricedEvent;
+import com.dbtraining.sharding.ShardRouter;
+import com.dbtraining.workload.Workload;
+import jakarta.persistence.EntityManager;
+import net.datafaker.Faker;
+import org.hibernate.Session;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.ToIntFunction;
+
+import static com.dbtraining.monitoring.StrategyPhaseEvent.BUILD_PAYLOAD;
+import static com.dbtraining.monitoring.StrategyPhaseEvent.EXECUTE;
+import static com.dbtraining.monitoring.StrategyPhaseEvent.GENERATE;
+
+/**
+ * Price changes for a set of products, applied through the persistence context, JPQL, an UNNEST update and a COPY
+ * into a staging table. Products are copied to every shard, so each strategy updates all of them.
+ */
+@RestController
+@RequestMapping("/api/products/bulk-updates")
+public class ProductBulkUpdatesController {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProductBulkUpdatesController.class);
+
+    // Products per JPQL update, its CASE takes two parameters per product plus the IN list
+    private static final int CHUNK_SIZE = 500;
+    // Further attempts for a shard that failed while the others committed the new prices
+    private static final int SHARD_RETRIES = 2;
+
+    private final OrderBulkInsertsController orderBulkInsertsController;
+    private final EntityManager entityManager;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Workload workload;
+    private final ShardRouter shardRouter;
+    private final TransactionTemplate transactionTemplate;
+    private final Faker faker = new Faker();
+
+    public ProductBulkUpdatesController(OrderBulkInsertsController orderBulkInsertsController, EntityManager entityManager,
+                                        ApplicationEventPublisher eventPublisher, Workload workload, ShardRouter shardRouter,
+                                        TransactionTemplate transactionTemplate) {
+        this.orderBulkInsertsController = orderBulkInsertsController;
+        this.entityManager = entityManager;
+        this.eventPublisher = eventPublisher;
+        this.workload = workload;
+        this.shardRouter = shardRouter;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    public record BulkUpdateRequest(int numberOfProducts) {}
+    record BenchmarkResult(String strategy, int totalRecords, long executionTimeMs) {}
+    record PriceChanges(List<Long> productIds, List<BigDecimal> prices) {}
+
+    @PostMapping("/dirty-checking")
+    public ResponseEntity<BenchmarkResult> updateWithDirtyChecking(@RequestBody BulkUpdateRequest request) {
+        var startTime = System.currentTimeMillis();
+        var changes = generate("Dirty Checking", request);
+
+        var totalRecords = onEachShard("Dirty Checking", shard -> {
+            // Loads the products with one select on an id array, the flush at commit then issues one UPDATE per product
+            var execute = StrategyPhaseEvent.begin("Dirty Checking", "products", EXECUTE);
+            var products = entityManager.unwrap(Session.class)
+                    .byMultipleIds(Product.class)
+                    .multiLoad(changes.productIds());
+            var updated = 0;
+            for (int i = 0; i < products.size(); i++) {
+                if (products.get(i) != null) {
+                    products.get(i).setPrice(changes.prices().get(i));
+                    updated++;
+                }
+            }
+            execute.finish(updated);
+            return updated;
+        });
+
+        return result("Dirty Checking", totalRecords, startTime);
+    }
+
+    @PostMapping("/jpql")
+    public ResponseEntity<BenchmarkResult> updateWithJpql(@RequestBody BulkUpdateRequest request) {
+        var startTime = System.currentTimeMillis();
+        var changes = generate("JPQL Update", request);
+
+        var totalRecords = onEachShard("JPQL Update", shard -> {
+            var updated = 0;
+            var ids = changes.productIds();
+            for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+                var to = Math.min(from + CHUNK_SIZE, ids.size());
+                var buildPayload = StrategyPhaseEvent.begin("JPQL Update", "products", BUILD_PAYLOAD);
+                var jpql = new StringBuilder("UPDATE Product p SET p.price = CASE p.id");
+                for (int k = 0; k < to - from; k++) {
+                    jpql.append(" WHEN :id").append(k).append(" THEN :price").append(k);
+                }
+                jpql.append(" ELSE p.price END WHERE p.id IN :ids");
+                var query = entityManager.createQuery(jpql.toString());
+                for (int k = 0; k < to - from; k++) {
+                    query.setParameter("id" + k, ids.get(from + k));
+                    query.setParameter("price" + k, changes.prices().get(from + k));
+                }
+                query.setParameter("ids", ids.subList(from, to));
+                buildPayload.finish(to - from);
+
+                var execute = StrategyPhaseEvent.begin("JPQL Update", "products", EXECUTE);
+                var rows = query.executeUpdate();
+                execute.finish(rows);
+                updated += rows;
+            }
+            return updated;
+        });
+
+        return result("JPQL Update", totalRecords, startTime);
+    }
+
+    @PostMapping("/batch-unnest")
+    public ResponseEntity<BenchmarkResult> updateBatchUnnest(@RequestBody BulkUpdateRequest request) {
+        var startTime = System.currentTimeMillis();
+        var changes = generate("Batch UNNEST", request);
+
+        var totalRecords = onEachShard("Batch UNNEST", shard -> entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            var sql = """
+                UPDATE products p
+                SET price = u.price
+                FROM UNNEST(?::bigint[], ?::numeric[]) AS u(id, price)
+                WHERE p.id = u.id
+                """;
+            try (var ps = connection.prepareStatement(sql)) {
+                var buildPayload = StrategyPhaseEvent.begin("Batch UNNEST", "products", BUILD_PAYLOAD);
+                ps.setArray(1, connection.createArrayOf("bigint", changes.productIds().toArray()));
+                ps.setArray(2, connection.createArrayOf("numeric", changes.prices().toArray()));
+                buildPayload.finish(changes.productIds().size());
+
+                var execute = StrategyPhaseEvent.begin("Batch UNNEST", "products", EXECUTE);
+                var updated = ps.executeUpdate();
+                execute.finish(updated);
+                return updated;
+            }
+        }));
+
+        return result("Batch UNNEST", totalRecords, startTime);
+    }
+
+    @PostMapping("/copy-merge")
+    public ResponseEntity<BenchmarkResult> updateWithCopyMerge(@RequestBody BulkUpdateRequest request) {
+        var startTime = System.currentTimeMillis();
+        var changes = generate("COPY Merge", request);
+
+        var totalRecords = onEachShard("COPY Merge", shard -> entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (var stmt = connection.createStatement()) {
+                // Temporary tables skip the WAL and are private to this session
+                stmt.execute("CREATE TEMP TABLE product_price_updates (id bigint, price numeric(38,2)) ON COMMIT DROP");
+
+                var buildPayload = StrategyPhaseEvent.begin("COPY Merge", "product_price_updates", BUILD_PAYLOAD);
+                var rows = new StringBuilder();
+                for (int i = 0; i < changes.productIds().size(); i++) {
+                    rows.append(changes.productIds().get(i)).append('\t').append(changes.prices().get(i)).append('\n');
+                }
+                var payload = rows.toString().getBytes(StandardCharsets.UTF_8);
+                buildPayload.finish(changes.productIds().size());
+
+                var execute = StrategyPhaseEvent.begin("COPY Merge", "product_price_updates", EXECUTE);
+                var copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY product_price_updates FROM STDIN");
+                copy.writeToCopy(payload, 0, payload.length);
+                execute.finish(copy.endCopy());
+                // Autovacuum never sees temporary tables, without statistics the join below is planned blind
+                stmt.execute("ANALYZE product_price_updates");
+
+                execute = StrategyPhaseEvent.begin("COPY Merge", "products", EXECUTE);
+                var updated = stmt.executeUpdate("""
+                    UPDATE products p
+                    SET price = s.price
+                    FROM product_price_updates s
+                    WHERE p.id = s.id
+                    """);
+                execute.finish(updated);
+                return updated;
+            }
+        }));
+
+        return result("COPY Merge", totalRecords, startTime);
+    }
+
+    // Distinct products picked like the products of new orders, each with a new random price
+    private PriceChanges generate(String strategy, BulkUpdateRequest request) {
+        var generate = StrategyPhaseEvent.begin(strategy, "products", GENERATE);
+        var productIds = orderBulkInsertsController.randomDistinctProductIds(request.numberOfProducts());
+        var prices = new ArrayList<BigDecimal>(productIds.size());
+        for (int i = 0; i < productIds.size(); i++) {
+            prices.add(new BigDecimal(faker.commerce().price().replace(",", ".")));
+        }
+        generate.finish(productIds.size());
+        return new PriceChanges(productIds, prices);
+    }
+
+    // One transaction per shard, in parallel. Every shard holds the same products, so the row counts agree. The
+    // updates set absolute prices, so a shard that failed while others committed is simply run again
+    private int onEachShard(String strategy, ToIntFunction<Integer> update) {
+        try {
+            var results = shardRouter.onEachShard(shard -> updateShard(strategy, update, shard));
+            var failed = new TreeMap<Integer, RuntimeException>();
+            int updated = 0;
+            for (int shard = 0; shard < results.size(); shard++) {
+                if (results.get(shard).error() != null) {
+                    failed.put(shard, results.get(shard).error());
+                } else {
+                    updated = results.get(shard).rows();
+                }
+            }
+            if (failed.size() == results.size()) {
+                // Nothing diverges when no shard committed
+                throw failed.firstEntry().getValue();
+            }
+            for (int retry = 0; retry < SHARD_RETRIES && !failed.isEmpty(); retry++) {
+                for (int shard : List.copyOf(failed.keySet())) {
+                    var result = shardRouter.onShard(shard, () -> updateShard(strategy, update, shard));
+                    if (result.error() == null) {
+                        failed.remove(shard);
+                    } else {
+                        failed.put(shard, result.error());
+                    }
+                }
+            }
+            if (!failed.isEmpty()) {
+                var divergence = new IllegalStateException("Product prices diverge: shards " + failed.keySet()
+                        + " kept the old prices while the others committed the new ones. ShardInitializer copies the "
+                        + "products of shard 0 to the other shards at the next start");
+                failed.values().forEach(divergence::addSuppressed);
+                throw divergence;
+            }
+            return updated;
+        } finally {
+            // JPQL and SQL updates bypass the second-level cache and the entities already loaded in this request
+            entityManager.getEntityManagerFactory().getCache().evict(Product.class);
+            entityManager.clear();
+        }
+    }
+
+    private record ShardUpdate(int rows, RuntimeException error) {}
+
+    private ShardUpdate updateShard(String strategy, ToIntFunction<Integer> update, int shard) {
+        try {
+            return new ShardUpdate(transactionTemplate.execute(status -> {
+                var rows = update.applyAsInt(shard);
+                eventPublisher.publishEvent(new ProductsRepricedEvent(rows));
+                StrategyPhaseEvent.recordCommit(strategy, "products", rows);
+                return rows;
+            }), null);
+        } catch (RuntimeException e) {
+            logger.warn("{} price update failed on shard {}", strategy, shard, e);
+            return new ShardUpdate(0, e);
+        }
+    }
+
+    private static ResponseEntity<BenchmarkResult> result(String strategy, int totalRecords, long startTime) {
+        var executionTime = System.currentTimeMillis() - startTime;
+        return ResponseEntity.ok(new BenchmarkResult(
+                strategy,
+                totalRecords,
+                executionTime
+        ));
+    }
+}
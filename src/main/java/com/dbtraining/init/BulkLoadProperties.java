@@ -0,0 +1,14 @@
+package com.dbtraining.init;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConfigurationProperties(prefix = "db.bulk-load")
+public record BulkLoadProperties(
+        // Drop foreign keys and indexes before loading and rebuild them afterwards
+        @DefaultValue("true") boolean enabled,
+        // Number of connections used to rebuild indexes and constraints in parallel
+        @DefaultValue("4") int parallelism,
+        // Session maintenance_work_mem used by the index builds
+        @DefaultValue("256MB") String maintenanceWorkMem) {
+}
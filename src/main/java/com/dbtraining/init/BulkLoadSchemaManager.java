@@ -0,0 +1,192 @@
+package com.dbtraining.init;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Captures the foreign keys and indexes of the loaded tables so they can be dropped before a bulk load
+ * and rebuilt afterwards, each table on its own connection.
+ */
+@Component
+public class BulkLoadSchemaManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkLoadSchemaManager.class);
+
+    public static final String[] TABLES = {"users", "products", "orders", "order_items"};
+
+    private final DataSource dataSource;
+    private final BulkLoadProperties properties;
+
+    public BulkLoadSchemaManager(DataSource dataSource, BulkLoadProperties properties) {
+        this.dataSource = dataSource;
+        this.properties = properties;
+    }
+
+    public record SchemaObject(String table, String name, String definition) {
+        String dropSql() {
+            return "ALTER TABLE " + table + " DROP CONSTRAINT " + name;
+        }
+
+        public String createSql() {
+            return "ALTER TABLE " + table + " ADD CONSTRAINT " + name + " " + definition;
+        }
+    }
+
+    public record IndexObject(String table, String name, String definition) {
+    }
+
+    /**
+     * Snapshot of what was dropped. Primary and unique keys are rebuilt together with the plain indexes,
+     * foreign keys only once every referenced key exists again.
+     */
+    public record CapturedSchema(List<SchemaObject> keys, List<IndexObject> indexes, List<SchemaObject> foreignKeys) {
+        public boolean isEmpty() {
+            return keys.isEmpty() && indexes.isEmpty() && foreignKeys.isEmpty();
+        }
+    }
+
+    public CapturedSchema captureAndDrop() {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            var captured = capture(connection);
+            try (Statement stmt = connection.createStatement()) {
+                for (SchemaObject fk : captured.foreignKeys()) {
+                    stmt.execute(fk.dropSql());
+                }
+                for (SchemaObject key : captured.keys()) {
+                    stmt.execute(key.dropSql());
+                }
+                for (IndexObject index : captured.indexes()) {
+                    stmt.execute("DROP INDEX " + index.name());
+                }
+            }
+            connection.commit();
+            logger.info("Dropped {} foreign keys, {} keys and {} indexes before bulk load",
+                    captured.foreignKeys().size(), captured.keys().size(), captured.indexes().size());
+            return captured;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not drop constraints before bulk load", e);
+        }
+    }
+
+    public void rebuildIndexes(CapturedSchema captured) {
+        Map<String, List<String>> statementsByTable = new LinkedHashMap<>();
+        captured.keys().forEach(key -> statementsByTable
+                .computeIfAbsent(key.table(), t -> new ArrayList<>())
+                .add(key.createSql()));
+        captured.indexes().forEach(index -> statementsByTable
+                .computeIfAbsent(index.table(), t -> new ArrayList<>())
+                .add(index.definition()));
+        runInParallel(statementsByTable);
+    }
+
+    public void rebuildForeignKeys(CapturedSchema captured) {
+        Map<String, List<String>> statementsByTable = new LinkedHashMap<>();
+        captured.foreignKeys().forEach(fk -> statementsByTable
+                .computeIfAbsent(fk.table(), t -> new ArrayList<>())
+                .add(fk.createSql()));
+        runInParallel(statementsByTable);
+    }
+
+    public void vacuumFreezeAnalyze() {
+        Map<String, List<String>> statementsByTable = new LinkedHashMap<>();
+        for (String table : TABLES) {
+            // VACUUM cannot run inside a transaction block, so these run in autocommit mode
+            statementsByTable.put(table, List.of("VACUUM (FREEZE, ANALYZE) " + table));
+        }
+        runInParallel(statementsByTable);
+    }
+
+    public static CapturedSchema capture(Connection connection) throws SQLException {
+        var keys = new ArrayList<SchemaObject>();
+        var foreignKeys = new ArrayList<SchemaObject>();
+        var indexes = new ArrayList<IndexObject>();
+
+        String constraintsSql = """
+                    SELECT c.conrelid::regclass::text, c.conname, c.contype, pg_get_constraintdef(c.oid)
+                    FROM pg_constraint c
+                    WHERE c.conrelid = ANY(?::regclass[]) AND c.contype IN ('p', 'u', 'x', 'f')
+                    ORDER BY c.conrelid::regclass::text, c.conname
+                """;
+        try (PreparedStatement ps = connection.prepareStatement(constraintsSql)) {
+            ps.setArray(1, connection.createArrayOf("text", TABLES));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    var object = new SchemaObject(rs.getString(1), rs.getString(2), rs.getString(4));
+                    if ("f".equals(rs.getString(3))) {
+                        foreignKeys.add(object);
+                    } else {
+                        keys.add(object);
+                    }
+                }
+            }
+        }
+
+        // Indexes backing a primary, unique or exclusion key are recreated by the constraint itself
+        String indexesSql = """
+                    SELECT t.oid::regclass::text, i.oid::regclass::text, pg_get_indexdef(ix.indexrelid)
+                    FROM pg_index ix
+                    JOIN pg_class i ON i.oid = ix.indexrelid
+                    JOIN pg_class t ON t.oid = ix.indrelid
+                    WHERE t.oid = ANY(?::regclass[])
+                      AND NOT EXISTS (SELECT 1 FROM pg_constraint c
+                                      WHERE c.conindid = ix.indexrelid AND c.contype IN ('p', 'u', 'x'))
+                    ORDER BY 1, 2
+                """;
+        try (PreparedStatement ps = connection.prepareStatement(indexesSql)) {
+            ps.setArray(1, connection.createArrayOf("text", TABLES));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    indexes.add(new IndexObject(rs.getString(1), rs.getString(2), rs.getString(3)));
+                }
+            }
+        }
+
+        return new CapturedSchema(keys, indexes, foreignKeys);
+    }
+
+    private void runInParallel(Map<String, List<String>> statementsByTable) {
+        if (statementsByTable.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, properties.parallelism()));
+        try {
+            var futures = statementsByTable.entrySet().stream()
+                    .map(entry -> CompletableFuture.runAsync(() -> runOnOwnConnection(entry.getKey(), entry.getValue()), executor))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(futures).join();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runOnOwnConnection(String table, List<String> statements) {
+        try (Connection connection = dataSource.getConnection(); Statement stmt = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            stmt.execute("SET maintenance_work_mem = '" + properties.maintenanceWorkMem() + "'");
+            for (String sql : statements) {
+                long start = System.currentTimeMillis();
+                stmt.execute(sql);
+                logger.info("[{}] {} ({} ms)", table, sql, System.currentTimeMillis() - start);
+            }
+            stmt.execute("RESET maintenance_work_mem");
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to rebuild schema objects of table " + table, e);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.dbtraining.init;
 
+import com.dbtraining.journal.OrderJournalService;
+import com.dbtraining.monitoring.StrategyPhaseEvent;
+import com.dbtraining.workload.Workload;
 import jakarta.persistence.EntityManager;
 import net.datafaker.Faker;
 import org.hibernate.Session;
@@ -22,9 +25,16 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static com.dbtraining.monitoring.StrategyPhaseEvent.BUILD_PAYLOAD;
+import static com.dbtraining.monitoring.StrategyPhaseEvent.EXECUTE;
+import static com.dbtraining.monitoring.StrategyPhaseEvent.GENERATE;
 
 @Component
 public class DataLoader {
@@ -34,21 +44,33 @@ public class DataLoader {
 
     private final EntityManager entityManager;
     private final TransactionTemplate transactionTemplate;
+    private final BulkLoadSchemaManager schemaManager;
+    private final BulkLoadProperties bulkLoadProperties;
+    private final Workload workload;
+    private final OrderJournalService orderJournalService;
     private final Faker faker = new Faker();
     private final Random random = new Random();
 
     private static final int NUM_USERS = 100_000;
     private static final int NUM_PRODUCTS = 100_000;
     private static final int NUM_ORDERS = 1_000_000;
-    public static final int NUM_ORDER_ITEMS = NUM_ORDERS * 3;
+    private static final int ITEMS_PER_ORDER = 3;
+    public static final int NUM_ORDER_ITEMS = NUM_ORDERS * ITEMS_PER_ORDER;
 
     private final AtomicBoolean isInserting = new AtomicBoolean(false);
     private Thread progressLoggerThread;
+    private final Map<String, Long> phaseDurations = new LinkedHashMap<>();
 
     @Autowired
-    public DataLoader(EntityManager entityManager, TransactionTemplate transactionTemplate) {
+    public DataLoader(EntityManager entityManager, TransactionTemplate transactionTemplate,
+                      BulkLoadSchemaManager schemaManager, BulkLoadProperties bulkLoadProperties, Workload workload,
+                      OrderJournalService orderJournalService) {
         this.entityManager = entityManager;
         this.transactionTemplate = transactionTemplate;
+        this.schemaManager = schemaManager;
+        this.bulkLoadProperties = bulkLoadProperties;
+        this.workload = workload;
+        this.orderJournalService = orderJournalService;
     }
 
     public void run() {
@@ -60,14 +82,17 @@ public class DataLoader {
         long startTime = System.currentTimeMillis();
         logger.info("Starting data generation...");
 
+        phaseDurations.clear();
         try {
             disableSynchronousCommit();
             logger.info("Disabled synchronous commit for bulk loading");
-            cleanupDatabase();
-            generateUsers();
-            generateProducts();
-            generateOrders();
-            generateOrderItems();
+            timed("cleanup", this::cleanupDatabase);
+
+            if (bulkLoadProperties.enabled()) {
+                loadWithDeferredSchema();
+            } else {
+                loadData();
+            }
 
             createFlagFile();
 
@@ -75,9 +100,58 @@ public class DataLoader {
             logger.info("Data generation completed in {} seconds", duration / 1000);
         } catch (Exception e) {
             logger.error("Error during data generation", e);
+        } finally {
+            logPhaseDurations();
         }
     }
 
+    private void loadData() {
+        timed("users", this::generateUsers);
+        timed("products", this::generateProducts);
+        timed("orders", this::generateOrders);
+        timed("order items", this::generateOrderItems);
+    }
+
+    private void loadWithDeferredSchema() {
+        var captured = timed("drop constraints and indexes", schemaManager::captureAndDrop);
+        try {
+            loadData();
+        } finally {
+            // Restore the schema even if loading failed, so the tables are never left without keys
+            timed("rebuild keys and indexes", () -> schemaManager.rebuildIndexes(captured));
+            timed("rebuild foreign keys", () -> schemaManager.rebuildForeignKeys(captured));
+        }
+        timed("vacuum freeze analyze", schemaManager::vacuumFreezeAnalyze);
+    }
+
+    private void timed(String phase, Runnable action) {
+        timed(phase, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private <T> T timed(String phase, Supplier<T> action) {
+        long start = System.currentTimeMillis();
+        try {
+            return action.get();
+        } finally {
+            long duration = System.currentTimeMillis() - start;
+            phaseDurations.put(phase, duration);
+            logger.info("Phase '{}' took {} ms", phase, duration);
+        }
+    }
+
+    private void logPhaseDurations() {
+        if (phaseDurations.isEmpty()) {
+            return;
+        }
+        var summary = new StringBuilder("Data loader timing per phase:");
+        phaseDurations.forEach((phase, duration) ->
+                summary.append(String.format("%n  %-30s %8d ms", phase, duration)));
+        logger.info(summary.toString());
+    }
+
     private boolean isDataAlreadyGenerated() {
         File flagFile = new File(FLAG_FILE_NAME);
         return flagFile.exists();
@@ -94,6 +168,12 @@ public class DataLoader {
     }
 
     private void cleanupDatabase() {
+        long pendingOrders = orderJournalService.pendingOrders();
+        if (pendingOrders > 0) {
+            // Their replay would land in the truncated tables, or before them and be truncated with the rest
+            throw new IllegalStateException(pendingOrders + " journaled orders are not in the database yet, start once "
+                    + "without db.generate-data to replay them before regenerating the data");
+        }
         logger.info("Cleaning up database...");
         transactionTemplate.execute(status -> {
             Session session = entityManager.unwrap(Session.class);
@@ -104,6 +184,8 @@ public class DataLoader {
                     stmt.executeUpdate("TRUNCATE TABLE orders CASCADE");
                     stmt.executeUpdate("TRUNCATE TABLE products CASCADE");
                     stmt.executeUpdate("TRUNCATE TABLE users CASCADE");
+                    // Archived rows would collide with the ids generated next, the archival job recreates these
+                    stmt.executeUpdate("DROP TABLE IF EXISTS order_items_archive, orders_archive");
 
                     // Reset sequences
                     stmt.executeUpdate("ALTER SEQUENCE order_item_sequence RESTART WITH 1");
@@ -124,10 +206,12 @@ public class DataLoader {
 
         // Prepare data
         startProgressLogger("Preparing users data", NUM_USERS);
+        var generate = StrategyPhaseEvent.begin("DataLoader", "users", GENERATE);
         for (int i = 0; i < NUM_USERS; i++) {
             usernames.add(faker.internet().username());
             emails.add(faker.internet().emailAddress());
         }
+        generate.finish(NUM_USERS);
         stopProgressLogger();
 
 
@@ -138,15 +222,21 @@ public class DataLoader {
                 """;
         startProgressLogger("Inserting users", NUM_USERS);
         transactionTemplate.execute(status -> {
+            StrategyPhaseEvent.recordCommit("DataLoader", "users", NUM_USERS);
             Session session = entityManager.unwrap(Session.class);
             session.doWork(connection -> {
                 PgConnection pgConn = connection.unwrap(PgConnection.class);
                 try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    var buildPayload = StrategyPhaseEvent.begin("DataLoader", "users", BUILD_PAYLOAD);
                     Array usernameArray = pgConn.createArrayOf("text", usernames.toArray());
                     Array emailArray = pgConn.createArrayOf("text", emails.toArray());
                     ps.setArray(1, usernameArray);
                     ps.setArray(2, emailArray);
+                    buildPayload.finish(NUM_USERS);
+
+                    var execute = StrategyPhaseEvent.begin("DataLoader", "users", EXECUTE);
                     int inserted = ps.executeUpdate();
+                    execute.finish(inserted);
                     logger.info("Inserted {} users", inserted);
                 }
             });
@@ -163,10 +253,12 @@ public class DataLoader {
 
         // Prepare data
         startProgressLogger("Preparing products data", NUM_PRODUCTS);
+        var generate = StrategyPhaseEvent.begin("DataLoader", "products", GENERATE);
         for (int i = 0; i < NUM_PRODUCTS; i++) {
             names.add(faker.commerce().productName());
             prices.add(new BigDecimal(faker.commerce().price().replace(",", ".")));
         }
+        generate.finish(NUM_PRODUCTS);
         stopProgressLogger();
 
 
@@ -178,15 +270,21 @@ public class DataLoader {
 
         startProgressLogger("Inserting products", NUM_PRODUCTS);
         transactionTemplate.execute(status -> {
+            StrategyPhaseEvent.recordCommit("DataLoader", "products", NUM_PRODUCTS);
             Session session = entityManager.unwrap(Session.class);
             session.doWork(connection -> {
                 PgConnection pgConn = connection.unwrap(PgConnection.class);
                 try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    var buildPayload = StrategyPhaseEvent.begin("DataLoader", "products", BUILD_PAYLOAD);
                     Array nameArray = pgConn.createArrayOf("text", names.toArray());
                     Array priceArray = pgConn.createArrayOf("numeric", prices.toArray());
                     ps.setArray(1, nameArray);
                     ps.setArray(2, priceArray);
+                    buildPayload.finish(NUM_PRODUCTS);
+
+                    var execute = StrategyPhaseEvent.begin("DataLoader", "products", EXECUTE);
                     int inserted = ps.executeUpdate();
+                    execute.finish(inserted);
                     logger.info("Inserted {} products", inserted);
                 }
             });
@@ -204,10 +302,13 @@ public class DataLoader {
 
         // Prepare data
         startProgressLogger("Preparing orders data", NUM_ORDERS);
+        var generate = StrategyPhaseEvent.begin("DataLoader", "orders", GENERATE);
+        var orderDates = workload.orderDates(LocalDateTime.now());
         for (int i = 0; i < NUM_ORDERS; i++) {
-            dates.add(Timestamp.valueOf(LocalDateTime.now().minusDays(random.nextInt(365))));
-            userIds.add((long) (random.nextInt(NUM_USERS) + 1));
+            dates.add(Timestamp.valueOf(orderDates.next(random)));
+            userIds.add((long) (workload.userIndex(NUM_USERS) + 1));
         }
+        generate.finish(NUM_ORDERS);
         stopProgressLogger();
 
         String sql = """
@@ -218,15 +319,21 @@ public class DataLoader {
 
         startProgressLogger("Inserting orders", NUM_ORDERS);
         transactionTemplate.execute(status -> {
+            StrategyPhaseEvent.recordCommit("DataLoader", "orders", NUM_ORDERS);
             Session session = entityManager.unwrap(Session.class);
             session.doWork(connection -> {
                 PgConnection pgConn = connection.unwrap(PgConnection.class);
                 try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    var buildPayload = StrategyPhaseEvent.begin("DataLoader", "orders", BUILD_PAYLOAD);
                     Array dateArray = pgConn.createArrayOf("timestamp", dates.toArray());
                     Array userIdArray = pgConn.createArrayOf("bigint", userIds.toArray());
                     ps.setArray(1, dateArray);
                     ps.setArray(2, userIdArray);
+                    buildPayload.finish(NUM_ORDERS);
+
+                    var execute = StrategyPhaseEvent.begin("DataLoader", "orders", EXECUTE);
                     int inserted = ps.executeUpdate();
+                    execute.finish(inserted);
                     logger.info("Inserted {} orders", inserted);
                 }
             });
@@ -244,11 +351,27 @@ public class DataLoader {
 
         // Prepare data
         startProgressLogger("Preparing order items data", NUM_ORDER_ITEMS);
-        for (int i = 0; i < NUM_ORDER_ITEMS; i++) {
-            orderIds.add((long) (random.nextInt(NUM_ORDERS) + 1));
-            productIds.add((long) (random.nextInt(NUM_PRODUCTS) + 1));
-            quantities.add(random.nextInt(5) + 1);
+        var generate = StrategyPhaseEvent.begin("DataLoader", "order_items", GENERATE);
+        if (workload.fixedOrderSize()) {
+            // Items go to random orders, which gives about ITEMS_PER_ORDER per order and some orders without any
+            for (int i = 0; i < NUM_ORDER_ITEMS; i++) {
+                orderIds.add((long) (random.nextInt(NUM_ORDERS) + 1));
+                productIds.add((long) (workload.productIndex(NUM_PRODUCTS) + 1));
+                quantities.add(random.nextInt(5) + 1);
+            }
+        } else {
+            // Order ids run from 1 to NUM_ORDERS since the sequences were restarted by the cleanup
+            for (long orderId = 1; orderId <= NUM_ORDERS; orderId++) {
+                int items = workload.itemCount(ITEMS_PER_ORDER);
+                for (int j = 0; j < items; j++) {
+                    orderIds.add(orderId);
+                    productIds.add((long) (workload.productIndex(NUM_PRODUCTS) + 1));
+                    quantities.add(random.nextInt(5) + 1);
+                }
+            }
         }
+        int numOrderItems = orderIds.size();
+        generate.finish(numOrderItems);
         stopProgressLogger();
         String sql = """
                     INSERT INTO order_items (id, order_id, product_id, quantity)
@@ -256,26 +379,32 @@ public class DataLoader {
                     FROM UNNEST(?::bigint[], ?::bigint[], ?::integer[]) AS oi(order_id, product_id, quantity)
                 """;
 
-        startProgressLogger("Inserting order items", NUM_ORDER_ITEMS);
+        startProgressLogger("Inserting order items", numOrderItems);
         transactionTemplate.execute(status -> {
+            StrategyPhaseEvent.recordCommit("DataLoader", "order_items", numOrderItems);
             Session session = entityManager.unwrap(Session.class);
             session.doWork(connection -> {
                 PgConnection pgConn = connection.unwrap(PgConnection.class);
                 try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    var buildPayload = StrategyPhaseEvent.begin("DataLoader", "order_items", BUILD_PAYLOAD);
                     Array orderIdArray = pgConn.createArrayOf("bigint", orderIds.toArray());
                     Array productIdArray = pgConn.createArrayOf("bigint", productIds.toArray());
                     Array quantityArray = pgConn.createArrayOf("integer", quantities.toArray());
                     ps.setArray(1, orderIdArray);
                     ps.setArray(2, productIdArray);
                     ps.setArray(3, quantityArray);
+                    buildPayload.finish(numOrderItems);
+
+                    var execute = StrategyPhaseEvent.begin("DataLoader", "order_items", EXECUTE);
                     int inserted = ps.executeUpdate();
+                    execute.finish(inserted);
                     logger.info("Inserted {} order items", inserted);
                 }
             });
             return null;
         });
         stopProgressLogger();
-        logger.info("Order items generation completed. Total order items: {}", NUM_ORDER_ITEMS);
+        logger.info("Order items generation completed. Total order items: {}", numOrderItems);
     }
 
     private void disableSynchronousCommit() {
@@ -0,0 +1,38 @@
+package com.dbtraining.init;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aot.AotDetector;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Logs where startup time goes: JVM boot until Spring starts, context refresh, and runners (data load, warm-up).
+ * The same durations are published by Spring Boot as the application.started.time and application.ready.time metrics.
+ */
+@Component
+public class StartupTimingLogger {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupTimingLogger.class);
+
+    private long startedUptimeMs;
+
+    @EventListener
+    public void onStarted(ApplicationStartedEvent event) {
+        startedUptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    @EventListener
+    public void onReady(ApplicationReadyEvent event) {
+        long readyUptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        boolean cds = ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+                .anyMatch(arg -> arg.startsWith("-XX:SharedArchiveFile"));
+        logger.info("Startup timing: context started at {} ms, ready at {} ms of JVM uptime (runners {} ms, AOT={}, AppCDS={})",
+                startedUptimeMs, readyUptimeMs, readyUptimeMs - startedUptimeMs,
+                AotDetector.useGeneratedArtifacts(), cds);
+    }
+}
@@ -0,0 +1,143 @@
+package com.dbtraining.init;
+
+import com.dbtraining.controller.OrderBulkInsertsController;
+import com.dbtraining.controller.OrderBulkInsertsController.BulkInsertRequest;
+import com.dbtraining.controller.OrderN1SelectController;
+import com.dbtraining.journal.OrderJournalService;
+import com.dbtraining.repository.OrderRepository;
+import com.dbtraining.service.UserService;
+import com.dbtraining.sharding.ShardRouter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.dbtraining.init.DataLoader.FLAG_FILE_NAME;
+
+/**
+ * Runs the hot code paths a few times before the application is ready, so the first benchmark requests do not pay
+ * for class loading and JIT compilation. Spring Boot only publishes the ready event (and the readiness probe only
+ * switches to ACCEPTING_TRAFFIC) once all runners have completed.
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class StartupWarmup implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupWarmup.class);
+
+    private final WarmupProperties properties;
+    private final OrderN1SelectController orderN1SelectController;
+    private final OrderBulkInsertsController orderBulkInsertsController;
+    private final OrderRepository orderRepository;
+    private final UserService userService;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+    private final ShardRouter shardRouter;
+    private final OrderJournalService orderJournalService;
+
+    public StartupWarmup(WarmupProperties properties, OrderN1SelectController orderN1SelectController,
+                         OrderBulkInsertsController orderBulkInsertsController, OrderRepository orderRepository,
+                         UserService userService, EntityManager entityManager,
+                         TransactionTemplate transactionTemplate, MeterRegistry meterRegistry, ShardRouter shardRouter,
+                         OrderJournalService orderJournalService) {
+        this.properties = properties;
+        this.orderN1SelectController = orderN1SelectController;
+        this.orderBulkInsertsController = orderBulkInsertsController;
+        this.orderRepository = orderRepository;
+        this.userService = userService;
+        this.entityManager = entityManager;
+        this.transactionTemplate = transactionTemplate;
+        this.meterRegistry = meterRegistry;
+        this.shardRouter = shardRouter;
+        this.orderJournalService = orderJournalService;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!properties.enabled()) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        logger.info("Starting warm-up: reads for {} users, {} bulk insert iterations", properties.users(), properties.iterations());
+        try {
+            warmupReads();
+            warmupBulkInserts();
+        } catch (Exception e) {
+            // A failed warm-up only costs us the JIT head start, never the startup
+            logger.warn("Warm-up aborted", e);
+        }
+        long duration = System.currentTimeMillis() - startTime;
+        meterRegistry.timer("app.warmup.time").record(duration, TimeUnit.MILLISECONDS);
+        logger.info("Warm-up completed in {} ms", duration);
+    }
+
+    private void warmupReads() {
+        @SuppressWarnings("unchecked")
+        List<Object[]> users = entityManager.createNativeQuery("SELECT id, email FROM users ORDER BY id LIMIT :limit")
+                .setParameter("limit", properties.users())
+                .getResultList();
+        if (users.isEmpty()) {
+            logger.info("No users in the database, skipping read warm-up");
+            return;
+        }
+        var now = LocalDateTime.now();
+        for (Object[] user : users) {
+            var userId = ((Number) user[0]).longValue();
+            var email = (String) user[1];
+            if (shardRouter.shardCount() > 1) {
+                // Opens a transaction on the shard of every user with the email, which may not be this user's shard
+                orderN1SelectController.loadSummaries(email);
+            } else {
+                transactionTemplate.executeWithoutResult(status -> orderN1SelectController.loadSummaries(email));
+            }
+            shardRouter.onShardOfUser(userId, () -> transactionTemplate.execute(status -> {
+                orderRepository.findByUserEmailWithItems(email);
+                orderRepository.findOrdersInDateRange(now.minusMinutes(1), now);
+                return null;
+            }));
+            userService.getUserOrders(userId);
+        }
+    }
+
+    private void warmupBulkInserts() throws Exception {
+        if (!new File(FLAG_FILE_NAME).exists()) {
+            logger.info("Data has not been generated, skipping bulk insert warm-up");
+            return;
+        }
+        if (shardRouter.shardCount() > 1) {
+            // The rollback below relies on all strategies joining one transaction, which cannot span shards
+            logger.info("Orders are sharded, skipping bulk insert warm-up");
+            return;
+        }
+        orderBulkInsertsController.existingIdsLoaded()
+                .get(properties.dataTimeout().toMillis(), TimeUnit.MILLISECONDS);
+
+        var request = new BulkInsertRequest(properties.numberOfOrders(), properties.itemsPerOrder());
+        for (int i = 0; i < properties.iterations(); i++) {
+            // The strategies join this transaction, which is rolled back so warm-up leaves no rows behind
+            transactionTemplate.execute(status -> {
+                // Journaled orders are replayed outside this transaction, they would survive the rollback
+                if (!orderJournalService.enabled()) {
+                    orderBulkInsertsController.insertWithMultipleTransactions(request);
+                }
+                orderBulkInsertsController.insertWithSingleTransaction(request);
+                orderBulkInsertsController.insertBatchValues(request);
+                orderBulkInsertsController.insertBatchUnnest(request);
+                status.setRollbackOnly();
+                return null;
+            });
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.dbtraining.init;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.warmup")
+public record WarmupProperties(
+        // Exercise the read queries and bulk strategies before the application reports ready
+        @DefaultValue("false") boolean enabled,
+        // Bulk insert rounds, each one runs every strategy once
+        @DefaultValue("20") int iterations,
+        // Users whose orders are read; kept low because the N+1 read path scans order_items once per order
+        @DefaultValue("5") int users,
+        @DefaultValue("5") int numberOfOrders,
+        @DefaultValue("3") int itemsPerOrder,
+        // How long to wait for the bulk insert controller to cache the existing ids
+        @DefaultValue("60s") Duration dataTimeout) {
+}
@@ -0,0 +1,10 @@
+package com.dbtraining.journal;
+
+import java.time.LocalDateTime;
+
+/**
+ * An order as stored in the journal, before it has ids in the database.
+ */
+record JournaledOrder(long sequence, long acceptedAtMillis, long userId, LocalDateTime orderDate,
+                      long[] productIds, int[] quantities) {
+}
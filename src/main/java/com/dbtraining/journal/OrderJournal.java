@@ -0,0 +1,350 @@
+package com.dbtraining.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of accepted orders in fixed-size memory-mapped segment files named after their first sequence.
+ * A record is its body length, the CRC32C of the body and the body: sequence, acceptance time, user, order date and
+ * the items. Appends return once the record is forced to disk; appenders arriving while a force runs are covered by
+ * the next one. Recovery reads each segment up to the first record that is torn, fails its checksum or does not carry
+ * the next sequence, which is also where the data left over in a reused segment begins.
+ */
+final class OrderJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderJournal.class);
+
+    private static final int HEADER = 8;
+    private static final int FIXED_BODY = 8 + 8 + 8 + 8 + 4;
+    private static final int ITEM = 8 + 4;
+    private static final LocalDateTime EPOCH = LocalDateTime.of(1970, 1, 1, 0, 0);
+    private static final String SUFFIX = ".segment";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int spareSegments;
+
+    private final Object appendLock = new Object();
+    private final Object forceLock = new Object();
+    // Guarded by appendLock, oldest first
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Deque<Path> spares = new ArrayDeque<>();
+    private long appendedSequence;
+    private volatile long durableSequence;
+    private volatile long releasedSequence;
+
+    // Only used by the replayer
+    private Segment readSegment;
+    private int readPosition;
+    private long readSequence;
+
+    private static final class Segment {
+        final Path path;
+        final long firstSequence;
+        final MappedByteBuffer buffer;
+        volatile long lastSequence;
+        volatile int writePosition;
+        // Guarded by forceLock
+        int forcedPosition;
+
+        Segment(Path path, long firstSequence, MappedByteBuffer buffer) {
+            this.path = path;
+            this.firstSequence = firstSequence;
+            this.buffer = buffer;
+            this.lastSequence = firstSequence - 1;
+        }
+    }
+
+    /**
+     * Opens the journal in {@code directory}, recovering the segments already there.
+     *
+     * @param replayedSequence every order up to this sequence is in the database
+     * @param minimumSequence  new orders get sequences above this, even when the journal directory was lost
+     */
+    OrderJournal(Path directory, long segmentSize, long maxSize, int spareSegments,
+                 long replayedSequence, long minimumSequence) throws IOException {
+        this.directory = directory;
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE, segmentSize);
+        this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+        this.spareSegments = spareSegments;
+        Files.createDirectories(directory);
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Path path = files.get(i);
+            long first = Long.parseLong(path.getFileName().toString().replace(SUFFIX, ""));
+            Segment previous = segments.peekLast();
+            if (previous != null && first != previous.lastSequence + 1) {
+                // The previous segment lost its tail, so nothing after it was ever acknowledged: an append only
+                // returns once every segment written before it has been forced as well
+                logger.warn("Journal segment {} ends at sequence {}, dropping the {} segments after it",
+                        previous.path, previous.lastSequence, files.size() - i);
+                for (Path later : files.subList(i, files.size())) {
+                    Files.delete(later);
+                }
+                break;
+            }
+            Segment segment = map(path, first);
+            recover(segment);
+            segments.addLast(segment);
+        }
+
+        appendedSequence = segments.isEmpty() ? 0 : segments.peekLast().lastSequence;
+        if (appendedSequence < minimumSequence) {
+            // The database has seen orders the journal does not know: it was lost or replaced, start over after them
+            if (!segments.isEmpty()) {
+                logger.warn("Order journal in {} ends at sequence {}, before the replayed sequence {}, dropping it",
+                        directory, appendedSequence, minimumSequence);
+            }
+            for (Segment segment : segments) {
+                Files.delete(segment.path);
+            }
+            segments.clear();
+            appendedSequence = minimumSequence;
+        }
+        durableSequence = appendedSequence;
+        if (segments.isEmpty()) {
+            roll(appendedSequence + 1);
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        release(replayedSequence);
+        seek(replayedSequence + 1);
+        logger.info("Order journal in {}: {} segments, {} orders not replayed yet", directory, segments.size(),
+                appendedSequence - readSequence + 1);
+    }
+
+    /**
+     * Appends an order and returns once it is on disk.
+     *
+     * @return sequence of the order
+     * @throws IllegalStateException when the journal has reached its maximum size
+     */
+    long append(long userId, LocalDateTime orderDate, long[] productIds, int[] quantities) throws IOException {
+        int bodyLength = FIXED_BODY + ITEM * productIds.length;
+        if (HEADER + bodyLength > segmentSize) {
+            throw new IllegalArgumentException("An order with " + productIds.length + " items does not fit into a journal segment");
+        }
+        long sequence;
+        synchronized (appendLock) {
+            Segment segment = segments.peekLast();
+            if (segment.writePosition + HEADER + bodyLength > segmentSize) {
+                if (segments.size() >= maxSegments) {
+                    throw new IllegalStateException("Order journal is full, " + (appendedSequence - releasedSequence)
+                            + " orders are waiting to be replayed");
+                }
+                segment = roll(appendedSequence + 1);
+            }
+            sequence = appendedSequence + 1;
+            var buffer = segment.buffer;
+            int body = segment.writePosition + HEADER;
+            buffer.putLong(body, sequence);
+            buffer.putLong(body + 8, System.currentTimeMillis());
+            buffer.putLong(body + 16, userId);
+            buffer.putLong(body + 24, ChronoUnit.MICROS.between(EPOCH, orderDate));
+            buffer.putInt(body + 32, productIds.length);
+            for (int i = 0; i < productIds.length; i++) {
+                buffer.putLong(body + FIXED_BODY + i * ITEM, productIds[i]);
+                buffer.putInt(body + FIXED_BODY + i * ITEM + 8, quantities[i]);
+            }
+            buffer.putInt(segment.writePosition + 4, checksum(buffer, body, bodyLength));
+            buffer.putInt(segment.writePosition, bodyLength);
+            segment.writePosition += HEADER + bodyLength;
+            segment.lastSequence = sequence;
+            appendedSequence = sequence;
+        }
+        force(sequence);
+        return sequence;
+    }
+
+    /**
+     * Reads the next durable orders after those returned by the previous call, waiting up to {@code timeoutMillis}
+     * when there are none yet.
+     */
+    List<JournaledOrder> read(int max, long timeoutMillis) throws InterruptedException {
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (durableSequence < readSequence && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        var orders = new ArrayList<JournaledOrder>();
+        long limit = durableSequence;
+        while (orders.size() < max && readSequence <= limit) {
+            if (readSequence > readSegment.lastSequence) {
+                readSegment = segmentHolding(readSequence);
+                readPosition = 0;
+            }
+            var buffer = readSegment.buffer;
+            int bodyLength = buffer.getInt(readPosition);
+            int body = readPosition + HEADER;
+            int items = buffer.getInt(body + 32);
+            var productIds = new long[items];
+            var quantities = new int[items];
+            for (int i = 0; i < items; i++) {
+                productIds[i] = buffer.getLong(body + FIXED_BODY + i * ITEM);
+                quantities[i] = buffer.getInt(body + FIXED_BODY + i * ITEM + 8);
+            }
+            orders.add(new JournaledOrder(buffer.getLong(body), buffer.getLong(body + 8), buffer.getLong(body + 16),
+                    EPOCH.plus(buffer.getLong(body + 24), ChronoUnit.MICROS), productIds, quantities));
+            readPosition += HEADER + bodyLength;
+            readSequence++;
+        }
+        return orders;
+    }
+
+    /**
+     * Every order up to {@code sequence} is in the database: segments holding only such orders are deleted or kept
+     * as spares for the next segments.
+     */
+    void release(long sequence) throws IOException {
+        releasedSequence = Math.max(releasedSequence, Math.min(sequence, durableSequence));
+        synchronized (appendLock) {
+            while (segments.size() > 1 && segments.peekFirst().lastSequence <= releasedSequence) {
+                Path path = segments.pollFirst().path;
+                if (spares.size() < spareSegments) {
+                    spares.addLast(path);
+                } else {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    long appendedSequence() {
+        synchronized (appendLock) {
+            return appendedSequence;
+        }
+    }
+
+    long releasedSequence() {
+        return releasedSequence;
+    }
+
+    long sizeBytes() {
+        synchronized (appendLock) {
+            return (long) (segments.size() + spares.size()) * segmentSize;
+        }
+    }
+
+    // Forces every segment written since the last force, one call covers all appends made until it starts
+    private void force(long sequence) throws IOException {
+        synchronized (forceLock) {
+            if (durableSequence >= sequence) {
+                return;
+            }
+            long upTo;
+            var dirty = new ArrayList<Segment>();
+            var positions = new ArrayList<Integer>();
+            synchronized (appendLock) {
+                upTo = appendedSequence;
+                for (Segment segment : segments) {
+                    if (segment.lastSequence > durableSequence) {
+                        dirty.add(segment);
+                        positions.add(segment.writePosition);
+                    }
+                }
+            }
+            for (int i = 0; i < dirty.size(); i++) {
+                Segment segment = dirty.get(i);
+                segment.buffer.force(segment.forcedPosition, positions.get(i) - segment.forcedPosition);
+                segment.forcedPosition = positions.get(i);
+            }
+            durableSequence = upTo;
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private Segment roll(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+        Path spare = spares.pollFirst();
+        if (spare != null) {
+            Files.move(spare, path);
+        }
+        Segment segment = map(path, firstSequence);
+        // The new or renamed file has to survive a crash as well
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private Segment map(Path path, long firstSequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(path, firstSequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    private void recover(Segment segment) {
+        var buffer = segment.buffer;
+        int position = 0;
+        long sequence = segment.firstSequence;
+        while (position + HEADER + FIXED_BODY <= segmentSize) {
+            int bodyLength = buffer.getInt(position);
+            int body = position + HEADER;
+            if (bodyLength < FIXED_BODY || body + bodyLength > segmentSize
+                    || buffer.getInt(position + 4) != checksum(buffer, body, bodyLength)
+                    || buffer.getLong(body) != sequence) {
+                break;
+            }
+            position = body + bodyLength;
+            sequence++;
+        }
+        segment.writePosition = position;
+        segment.forcedPosition = position;
+        segment.lastSequence = sequence - 1;
+    }
+
+    private void seek(long sequence) {
+        readSegment = segments.peekFirst();
+        readPosition = 0;
+        readSequence = readSegment.firstSequence;
+        while (readSequence < sequence && readSequence <= readSegment.lastSequence) {
+            readPosition += HEADER + readSegment.buffer.getInt(readPosition);
+            readSequence++;
+        }
+        readSequence = Math.max(readSequence, sequence);
+    }
+
+    private Segment segmentHolding(long sequence) {
+        synchronized (appendLock) {
+            for (Segment segment : segments) {
+                if (segment.firstSequence <= sequence && sequence <= segment.lastSequence) {
+                    return segment;
+                }
+            }
+        }
+        throw new IllegalStateException("No journal segment holds sequence " + sequence);
+    }
+
+    private static int checksum(MappedByteBuffer buffer, int position, int length) {
+        var crc = new CRC32C();
+        crc.update(buffer.slice(position, length));
+        return (int) crc.getValue();
+    }
+}
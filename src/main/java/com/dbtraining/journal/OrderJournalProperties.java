@@ -0,0 +1,25 @@
+package com.dbtraining.journal;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.order-journal")
+public record OrderJournalProperties(
+        // Accept orders into a local journal once fsynced, a background replayer writes them to the database
+        @DefaultValue("false") boolean enabled,
+        @DefaultValue("order-journal") Path directory,
+        // Size of each memory-mapped segment file, an order has to fit into one
+        @DefaultValue("64MB") DataSize segmentSize,
+        // Orders are refused while the segments not replayed yet take this much
+        @DefaultValue("1GB") DataSize maxSize,
+        // Replayed segments kept to be reused rather than deleted
+        @DefaultValue("2") int spareSegments,
+        // Orders per replay transaction
+        @DefaultValue("5000") int batchSize,
+        // Wait before a failed replay batch is tried again
+        @DefaultValue("1s") Duration retryDelay) {
+}
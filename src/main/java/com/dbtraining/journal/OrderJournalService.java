@@ -0,0 +1,364 @@
+package com.dbtraining.journal;
+
+import com.dbtraining.model.Order;
+import com.dbtraining.model.OrderItem;
+import com.dbtraining.monitoring.DbSessionTag;
+import com.dbtraining.service.OrdersWrittenEvent;
+import com.dbtraining.sharding.ShardRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongToIntFunction;
+import java.util.stream.LongStream;
+
+/**
+ * Write-behind mode for single orders: an accepted order is appended to the {@link OrderJournal} and acknowledged
+ * once it is on the local disk, a background thread replays the journal into the database in large batches. Each
+ * shard keeps the last replayed sequence in order_journal_checkpoint, updated in the transaction that inserts the
+ * orders, so replay resumes exactly where it stopped. Replayed orders only become visible in the database then;
+ * orders whose user or products do not exist are dropped and counted in app.order.journal.rejected.
+ */
+@Service
+public class OrderJournalService implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderJournalService.class);
+
+    private static final String REPLAY_ORDERS_SQL = """
+            INSERT INTO orders (id, order_date, user_id)
+            SELECT * FROM UNNEST(?::bigint[], ?::text[]::timestamp[], ?::bigint[])
+            """;
+
+    private static final String REPLAY_ITEMS_SQL = """
+            INSERT INTO order_items (id, quantity, order_id, product_id)
+            SELECT nextval('order_item_sequence'), i.quantity, i.order_id, i.product_id
+            FROM UNNEST(?::integer[], ?::bigint[], ?::bigint[]) AS i(quantity, order_id, product_id)
+            """;
+
+    private final DataSource dataSource;
+    private final OrderJournalProperties properties;
+    private final ShardRouter shardRouter;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Counter replayedOrders;
+    private final Counter rejectedOrders;
+    private final Timer appendTimer;
+    private volatile OrderJournal journal;
+    // Acceptance time of the oldest order not replayed yet, 0 when the replayer has caught up
+    private volatile long oldestPendingMillis;
+    // Last sequence replayed on each shard, only touched by the replay thread
+    private long[] checkpoints;
+    private Thread replayer;
+    private volatile boolean running;
+    private volatile boolean stopping;
+
+    public OrderJournalService(DataSource dataSource, OrderJournalProperties properties, ShardRouter shardRouter,
+                               ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry) {
+        this.dataSource = dataSource;
+        this.properties = properties;
+        this.shardRouter = shardRouter;
+        this.eventPublisher = eventPublisher;
+        this.replayedOrders = Counter.builder("app.order.journal.replayed")
+                .description("Journaled orders written to the database")
+                .register(meterRegistry);
+        this.rejectedOrders = Counter.builder("app.order.journal.rejected")
+                .description("Journaled orders dropped during replay because their user or a product does not exist")
+                .register(meterRegistry);
+        this.appendTimer = Timer.builder("app.order.journal.append")
+                .description("Time to append an order to the journal and force it to disk")
+                .register(meterRegistry);
+        Gauge.builder("app.order.journal.lag", this, OrderJournalService::pendingOrders)
+                .description("Orders accepted into the journal that are not in the database yet")
+                .register(meterRegistry);
+        Gauge.builder("app.order.journal.lag.seconds", this, service -> service.oldestPendingMillis == 0 ? 0
+                        : (System.currentTimeMillis() - service.oldestPendingMillis) / 1000.0)
+                .description("Age of the oldest journaled order that is not in the database yet")
+                .register(meterRegistry);
+        Gauge.builder("app.order.journal.size", this, service -> service.journal == null ? 0 : service.journal.sizeBytes())
+                .description("Bytes taken by the journal segments, spare ones included")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public boolean enabled() {
+        return properties.enabled();
+    }
+
+    /**
+     * Orders accepted into the journal that are not in the database yet, 0 when the journal is not open.
+     */
+    public long pendingOrders() {
+        OrderJournal current = journal;
+        return current == null ? 0 : current.appendedSequence() - current.releasedSequence();
+    }
+
+    /**
+     * Appends the order to the journal and returns once it is on disk. The order reaches the database later and
+     * gets its id there, the one of {@code order} and its items stays empty.
+     *
+     * @return journal sequence of the order
+     * @throws IllegalStateException if the journal is not open or full
+     */
+    public long accept(Order order) {
+        OrderJournal current = journal;
+        if (current == null) {
+            throw new IllegalStateException("The order journal is not open");
+        }
+        List<OrderItem> items = order.items();
+        var productIds = new long[items.size()];
+        var quantities = new int[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            productIds[i] = items.get(i).product().id();
+            quantities[i] = items.get(i).quantity();
+        }
+        return appendTimer.record(() -> {
+            try {
+                return current.append(order.user().id(), order.orderDate(), productIds, quantities);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not append the order to the journal", e);
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        stopping = false;
+        if (!properties.enabled()) {
+            return;
+        }
+        checkpoints = shardRouter.onEachShard(shard -> readCheckpoint()).stream().mapToLong(Long::longValue).toArray();
+        try {
+            journal = new OrderJournal(properties.directory(), properties.segmentSize().toBytes(),
+                    properties.maxSize().toBytes(), properties.spareSegments(),
+                    LongStream.of(checkpoints).min().orElse(0), LongStream.of(checkpoints).max().orElse(0));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the order journal in " + properties.directory(), e);
+        }
+    }
+
+    /**
+     * Orders are accepted from the start, replay waits until the runners are done: the data loader may still be
+     * truncating and refilling the tables until then.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void startReplay() {
+        if (journal != null && running && replayer == null) {
+            replayer = Thread.ofPlatform().name("order-journal-replay").start(this::drain);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        // The batch being replayed still commits, orders accepted after it are replayed on the next start
+        running = false;
+        stopping = true;
+        if (replayer != null) {
+            try {
+                replayer.join(properties.retryDelay().toMillis() + 10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replayer = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void drain() {
+        DbSessionTag.set("order-journal");
+        try {
+            List<JournaledOrder> batch = List.of();
+            while (!stopping) {
+                if (batch.isEmpty()) {
+                    batch = journal.read(properties.batchSize(), 100);
+                    oldestPendingMillis = batch.isEmpty() ? 0 : batch.get(0).acceptedAtMillis();
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                }
+                try {
+                    replay(batch);
+                    batch = List.of();
+                } catch (RuntimeException | IOException e) {
+                    // Kept until it goes through, replaying it again skips what a shard has already committed
+                    logger.warn("Could not replay journaled orders {} to {}, retrying in {}", batch.get(0).sequence(),
+                            batch.get(batch.size() - 1).sequence(), properties.retryDelay(), e);
+                    Thread.sleep(properties.retryDelay());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            DbSessionTag.clear();
+        }
+    }
+
+    private void replay(List<JournaledOrder> batch) throws IOException {
+        long lastSequence = batch.get(batch.size() - 1).sequence();
+        // Every shard moves its checkpoint, with or without orders in the batch, so the journal can be released
+        var written = shardRouter.onEachShard(shard -> {
+            var orders = pending(batch, shard, checkpoints[shard], shardRouter::shardOf);
+            Set<Long> userIds = replayOnShard(shard, orders, lastSequence);
+            checkpoints[shard] = lastSequence;
+            return userIds;
+        });
+        journal.release(lastSequence);
+
+        var userIds = new HashSet<Long>();
+        written.forEach(userIds::addAll);
+        if (!userIds.isEmpty()) {
+            eventPublisher.publishEvent(OrdersWrittenEvent.of(userIds));
+        }
+    }
+
+    /**
+     * The orders of the batch that belong on {@code shard} and are past its checkpoint. The journal resumes at the
+     * lowest checkpoint of all shards, a shard that had got further skips what it already committed.
+     */
+    static List<JournaledOrder> pending(List<JournaledOrder> batch, int shard, long checkpoint, LongToIntFunction shardOf) {
+        return batch.stream()
+                .filter(order -> order.sequence() > checkpoint && shardOf.applyAsInt(order.userId()) == shard)
+                .toList();
+    }
+
+    private Set<Long> replayOnShard(int shard, List<JournaledOrder> orders, long lastSequence) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                var valid = valid(connection, orders);
+                insert(connection, valid);
+                try (PreparedStatement ps = connection.prepareStatement("UPDATE order_journal_checkpoint SET sequence = ?")) {
+                    ps.setLong(1, lastSequence);
+                    ps.executeUpdate();
+                }
+                connection.commit();
+                replayedOrders.increment(valid.size());
+                rejectedOrders.increment(orders.size() - valid.size());
+                var userIds = new HashSet<Long>();
+                valid.forEach(order -> userIds.add(order.userId()));
+                return userIds;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not replay journaled orders on shard " + shard, e);
+        }
+    }
+
+    private List<JournaledOrder> valid(Connection connection, List<JournaledOrder> orders) throws SQLException {
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        Set<Long> users = existing(connection, "users", orders.stream().mapToLong(JournaledOrder::userId));
+        Set<Long> products = existing(connection, "products", orders.stream().flatMapToLong(order -> LongStream.of(order.productIds())));
+        var valid = new ArrayList<JournaledOrder>(orders.size());
+        for (JournaledOrder order : orders) {
+            if (users.contains(order.userId()) && LongStream.of(order.productIds()).allMatch(products::contains)) {
+                valid.add(order);
+            } else {
+                logger.warn("Dropping journaled order {} of user {}: the user or one of its products does not exist",
+                        order.sequence(), order.userId());
+            }
+        }
+        return valid;
+    }
+
+    private static Set<Long> existing(Connection connection, String table, LongStream ids) throws SQLException {
+        var existing = new HashSet<Long>();
+        try (PreparedStatement ps = connection.prepareStatement("SELECT id FROM " + table + " WHERE id = ANY(?)")) {
+            ps.setArray(1, connection.createArrayOf("bigint", ids.distinct().boxed().toArray()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getLong(1));
+                }
+            }
+        }
+        return existing;
+    }
+
+    private static void insert(Connection connection, List<JournaledOrder> orders) throws SQLException {
+        if (orders.isEmpty()) {
+            return;
+        }
+        // Ids are taken up front so the items can refer to their order without matching RETURNING rows back
+        var orderIds = new Long[orders.size()];
+        try (PreparedStatement ps = connection.prepareStatement("SELECT nextval('order_sequence') FROM generate_series(1, ?) ORDER BY 1")) {
+            ps.setInt(1, orders.size());
+            try (ResultSet rs = ps.executeQuery()) {
+                for (int i = 0; rs.next(); i++) {
+                    orderIds[i] = rs.getLong(1);
+                }
+            }
+        }
+        var orderDates = new String[orders.size()];
+        var userIds = new Long[orders.size()];
+        var quantities = new ArrayList<Integer>();
+        var itemOrderIds = new ArrayList<Long>();
+        var productIds = new ArrayList<Long>();
+        for (int i = 0; i < orders.size(); i++) {
+            JournaledOrder order = orders.get(i);
+            orderDates[i] = order.orderDate().toString();
+            userIds[i] = order.userId();
+            for (int j = 0; j < order.productIds().length; j++) {
+                quantities.add(order.quantities()[j]);
+                itemOrderIds.add(orderIds[i]);
+                productIds.add(order.productIds()[j]);
+            }
+        }
+        try (PreparedStatement ps = connection.prepareStatement(REPLAY_ORDERS_SQL)) {
+            ps.setArray(1, connection.createArrayOf("bigint", orderIds));
+            ps.setArray(2, connection.createArrayOf("text", orderDates));
+            ps.setArray(3, connection.createArrayOf("bigint", userIds));
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = connection.prepareStatement(REPLAY_ITEMS_SQL)) {
+            ps.setArray(1, connection.createArrayOf("integer", quantities.toArray()));
+            ps.setArray(2, connection.createArrayOf("bigint", itemOrderIds.toArray()));
+            ps.setArray(3, connection.createArrayOf("bigint", productIds.toArray()));
+            ps.executeUpdate();
+        }
+    }
+
+    private long readCheckpoint() {
+        try (Connection connection = dataSource.getConnection(); Statement stmt = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS order_journal_checkpoint (
+                        id boolean PRIMARY KEY DEFAULT true CHECK (id),
+                        sequence bigint NOT NULL
+                    )
+                    """);
+            stmt.execute("INSERT INTO order_journal_checkpoint (sequence) VALUES (0) ON CONFLICT (id) DO NOTHING");
+            try (ResultSet rs = stmt.executeQuery("SELECT sequence FROM order_journal_checkpoint")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read the order journal checkpoint", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.dbtraining.latency;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * One {@link LatencyProxy} per database server, started when the first JDBC URL pointing at it is routed.
+ */
+@Component
+public class LatencyProxies implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(LatencyProxies.class);
+
+    // Single host only, jdbc:postgresql://host[:port]/database?parameters
+    private static final Pattern JDBC_URL = Pattern.compile("(jdbc:postgresql://)([^/:,?]+)(?::(\\d+))?(/.*)?");
+
+    private final LatencyProxyProperties properties;
+    private final Map<String, LatencyProxy> proxies = new ConcurrentHashMap<>();
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    public LatencyProxies(LatencyProxyProperties properties) {
+        this.properties = properties;
+    }
+
+    public boolean enabled() {
+        return properties.enabled();
+    }
+
+    /**
+     * @return the URL with host and port replaced by those of the proxy in front of them, unchanged when disabled
+     */
+    public String route(String jdbcUrl) {
+        if (!properties.enabled()) {
+            return jdbcUrl;
+        }
+        var matcher = JDBC_URL.matcher(jdbcUrl);
+        if (!matcher.matches()) {
+            logger.warn("Not proxying {}, only single host PostgreSQL URLs are supported", jdbcUrl);
+            return jdbcUrl;
+        }
+        var host = matcher.group(2);
+        var port = matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : 5432;
+        var proxy = proxies.computeIfAbsent(host + ":" + port, key -> {
+            try {
+                var started = new LatencyProxy(host, port, properties, roundTrips);
+                logger.info("Proxying {} through 127.0.0.1:{} with {} ms latency, {} ms jitter and {} bandwidth",
+                        key, started.port(), properties.latency().toNanos() / 1e6, properties.jitter().toNanos() / 1e6,
+                        properties.bandwidth().toBytes() > 0 ? properties.bandwidth() + "/s" : "unlimited");
+                return started;
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not start the latency proxy for " + key, e);
+            }
+        });
+        return matcher.group(1) + "127.0.0.1:" + proxy.port() + (matcher.group(4) != null ? matcher.group(4) : "/");
+    }
+
+    /**
+     * @return round trips through all proxies since startup
+     */
+    public long roundTrips() {
+        return roundTrips.get();
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        for (LatencyProxy proxy : proxies.values()) {
+            proxy.close();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.dbtraining.latency;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Forwards connections accepted on a loopback port to one PostgreSQL server, holding back every chunk read in either
+ * direction until its simulated arrival time. A round trip is counted each time the client sends after it received.
+ */
+class LatencyProxy implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LatencyProxy.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // Bytes held back per direction even on an unlimited link, at least a few chunks
+    private static final int MIN_IN_FLIGHT_BYTES = 1024 * 1024;
+
+    private final InetSocketAddress upstream;
+    private final LatencyProxyProperties properties;
+    private final AtomicLong roundTrips;
+    private final ServerSocket serverSocket;
+    private final int inFlightBytes;
+
+    LatencyProxy(String host, int port, LatencyProxyProperties properties, AtomicLong roundTrips) throws IOException {
+        this.upstream = new InetSocketAddress(host, port);
+        this.properties = properties;
+        this.roundTrips = roundTrips;
+        this.inFlightBytes = inFlightBytes(properties);
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofPlatform().daemon().name("latency-proxy-" + port()).start(this::accept);
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket();
+                try {
+                    server.connect(upstream);
+                } catch (IOException e) {
+                    logger.warn("Could not connect to {}: {}", upstream, e.getMessage());
+                    client.close();
+                    continue;
+                }
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                var awaitingResponse = new AtomicBoolean();
+                pipe(client, server, true, awaitingResponse);
+                pipe(server, client, false, awaitingResponse);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.warn("Latency proxy stopped accepting connections", e);
+                }
+                return;
+            }
+        }
+    }
+
+    private record Chunk(byte[] data, long deliverAt) {
+    }
+
+    // One virtual thread reads and stamps each chunk with its arrival time, another writes it once that time has come.
+    // The reader stops once inFlightBytes wait to be written, so a slow receiver pushes back on the sender over TCP
+    private void pipe(Socket from, Socket to, boolean request, AtomicBoolean awaitingResponse) {
+        BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        Semaphore inFlight = new Semaphore(inFlightBytes);
+        Thread.ofVirtual().name("latency-proxy-read").start(() -> {
+            long linkFreeAt = 0;
+            long lastDelivery = 0;
+            byte[] buffer = new byte[CHUNK_SIZE];
+            try (InputStream in = from.getInputStream()) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    inFlight.acquire(read);
+                    if (request) {
+                        if (awaitingResponse.compareAndSet(false, true)) {
+                            roundTrips.incrementAndGet();
+                        }
+                    } else {
+                        awaitingResponse.set(false);
+                    }
+                    long now = System.nanoTime();
+                    // The link sends one chunk after the other, then each chunk travels for the latency
+                    linkFreeAt = Math.max(now, linkFreeAt) + transmissionNanos(read);
+                    lastDelivery = Math.max(lastDelivery, linkFreeAt + delayNanos());
+                    queue.add(new Chunk(Arrays.copyOf(buffer, read), lastDelivery));
+                }
+            } catch (IOException | InterruptedException e) {
+                // Closed by the other side or by the writer below
+            }
+            queue.add(new Chunk(null, 0));
+        });
+        Thread.ofVirtual().name("latency-proxy-write").start(() -> {
+            try (OutputStream out = to.getOutputStream()) {
+                Chunk chunk;
+                while ((chunk = queue.take()).data() != null) {
+                    long wait;
+                    while ((wait = chunk.deliverAt() - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    out.write(chunk.data());
+                    out.flush();
+                    inFlight.release(chunk.data().length);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection gone, closing both sockets ends the other direction too
+            } finally {
+                closeQuietly(from);
+                closeQuietly(to);
+                // Lets a blocked reader reach the closed socket
+                inFlight.release(inFlightBytes);
+            }
+        });
+    }
+
+    // What the link holds while a chunk travels, bandwidth times the longest delay
+    private static int inFlightBytes(LatencyProxyProperties properties) {
+        double bytesPerNano = properties.bandwidth().toBytes() / 1e9;
+        long delayNanos = properties.latency().plus(properties.jitter()).toNanos();
+        double bytes = bytesPerNano > 0 ? bytesPerNano * delayNanos : 0;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_IN_FLIGHT_BYTES, bytes));
+    }
+
+    private long delayNanos() {
+        long jitter = properties.jitter().toNanos();
+        return properties.latency().toNanos() + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+    }
+
+    private long transmissionNanos(int bytes) {
+        long bytesPerSecond = properties.bandwidth().toBytes();
+        return bytesPerSecond > 0 ? bytes * 1_000_000_000L / bytesPerSecond : 0;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
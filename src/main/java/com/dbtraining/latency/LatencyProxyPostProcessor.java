@@ -0,0 +1,28 @@
+package com.dbtraining.latency;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Points the application's Hikari pool at the latency proxy before the pool starts. Shard pools are routed when
+ * {@link com.dbtraining.sharding.ShardingDataSourcePostProcessor} creates them.
+ */
+@Component
+public class LatencyProxyPostProcessor implements BeanPostProcessor {
+
+    private final ObjectProvider<LatencyProxies> latencyProxies;
+
+    public LatencyProxyPostProcessor(ObjectProvider<LatencyProxies> latencyProxies) {
+        this.latencyProxies = latencyProxies;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        if (bean instanceof HikariDataSource dataSource && latencyProxies.getObject().enabled()) {
+            dataSource.setJdbcUrl(latencyProxies.getObject().route(dataSource.getJdbcUrl()));
+        }
+        return bean;
+    }
+}
@@ -0,0 +1,19 @@
+package com.dbtraining.latency;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.latency-proxy")
+public record LatencyProxyProperties(
+        // Route the JDBC connections of the datasource and every shard through a local TCP proxy
+        @DefaultValue("false") boolean enabled,
+        // Delay added in each direction, so a round trip costs twice this
+        @DefaultValue("1ms") Duration latency,
+        // Random extra delay per chunk, up to this much. Data is never reordered
+        @DefaultValue("0ms") Duration jitter,
+        // Throughput per connection and direction, 0 for unlimited
+        @DefaultValue("0B") DataSize bandwidth) {
+}
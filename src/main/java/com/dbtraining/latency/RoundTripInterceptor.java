@@ -0,0 +1,59 @@
+package com.dbtraining.latency;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Records the database round trips of each request in app.db.round.trips, tagged with the endpoint. The proxies
+ * only see connections, so the count is the difference over the request and includes whatever ran concurrently.
+ */
+@Component
+public class RoundTripInterceptor implements HandlerInterceptor, WebMvcConfigurer {
+
+    private static final String START_ATTRIBUTE = RoundTripInterceptor.class.getName() + ".start";
+
+    private final LatencyProxies latencyProxies;
+    private final MeterRegistry meterRegistry;
+
+    public RoundTripInterceptor(LatencyProxies latencyProxies, MeterRegistry meterRegistry) {
+        this.latencyProxies = latencyProxies;
+        this.meterRegistry = meterRegistry;
+        FunctionCounter.builder("app.latency.proxy.round.trips", latencyProxies, LatencyProxies::roundTrips)
+                .description("Round trips through the latency proxies")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (latencyProxies.enabled()) {
+            registry.addInterceptor(this);
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        request.setAttribute(START_ATTRIBUTE, latencyProxies.roundTrips());
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        if (!(request.getAttribute(START_ATTRIBUTE) instanceof Long start)) {
+            return;
+        }
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        DistributionSummary.builder("app.db.round.trips")
+                .description("Database round trips per request")
+                .tag("endpoint", request.getMethod() + " " + (pattern != null ? pattern : "UNKNOWN"))
+                .register(meterRegistry)
+                .record(latencyProxies.roundTrips() - start);
+    }
+}
@@ -0,0 +1,29 @@
+package com.dbtraining.monitoring;
+
+/**
+ * The endpoint the current thread works for. Connections taken from the pool report it to PostgreSQL as their
+ * application_name, so pg_stat_activity shows which endpoint every session is busy with.
+ */
+public final class DbSessionTag {
+
+    public static final String DEFAULT = "dbtraining";
+    // PostgreSQL truncates application_name to NAMEDATALEN - 1 bytes
+    private static final int MAX_LENGTH = 63;
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private DbSessionTag() {
+    }
+
+    public static String current() {
+        String tag = CURRENT.get();
+        return tag == null ? DEFAULT : tag;
+    }
+
+    public static void set(String tag) {
+        CURRENT.set(tag.length() > MAX_LENGTH ? tag.substring(0, MAX_LENGTH) : tag);
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+    }
+}
@@ -0,0 +1,108 @@
+package com.dbtraining.monitoring;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-demand JDK Flight Recorder recording, including the StrategyPhaseEvent breakdown:
+ * POST /actuator/jfr starts it, GET shows its state and DELETE stops it and returns the .jfr file.
+ */
+@Component
+@Endpoint(id = "jfr")
+public class JfrRecordingEndpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(JfrRecordingEndpoint.class);
+    private static final long MAX_SIZE_BYTES = 256L * 1024 * 1024;
+
+    private Recording recording;
+
+    @ReadOperation
+    public synchronized Map<String, Object> status() {
+        var status = new LinkedHashMap<String, Object>();
+        if (recording == null) {
+            status.put("state", "NONE");
+            return status;
+        }
+        status.put("state", recording.getState());
+        status.put("startTime", recording.getStartTime());
+        status.put("duration", Duration.between(recording.getStartTime(), Instant.now()));
+        status.put("maxAge", recording.getMaxAge());
+        status.put("size", recording.getSize());
+        return status;
+    }
+
+    /**
+     * @param settings JFR configuration, "profile" (default, with allocation and CPU samples) or "default"
+     * @param maxAgeSeconds how much history to keep, 10 minutes when omitted
+     */
+    @WriteOperation
+    public synchronized WebEndpointResponse<Map<String, Object>> start(@Nullable String settings, @Nullable Long maxAgeSeconds) {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            return new WebEndpointResponse<>(status(), WebEndpointResponse.STATUS_BAD_REQUEST);
+        }
+        closeRecording();
+        try {
+            recording = new Recording(Configuration.getConfiguration(settings == null ? "profile" : settings));
+        } catch (IOException | ParseException e) {
+            return new WebEndpointResponse<>(Map.of("error", "Unknown JFR settings " + settings), WebEndpointResponse.STATUS_BAD_REQUEST);
+        }
+        recording.setName("dbtraining-on-demand");
+        recording.enable(StrategyPhaseEvent.class);
+        recording.setToDisk(true);
+        recording.setMaxAge(Duration.ofSeconds(maxAgeSeconds == null ? 600 : maxAgeSeconds));
+        recording.setMaxSize(MAX_SIZE_BYTES);
+        recording.start();
+        logger.info("Started JFR recording with '{}' settings", settings == null ? "profile" : settings);
+        return new WebEndpointResponse<>(status());
+    }
+
+    @DeleteOperation
+    public synchronized WebEndpointResponse<Resource> stop() {
+        if (recording == null || recording.getState() != RecordingState.RUNNING) {
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+        }
+        try {
+            recording.stop();
+            var file = Files.createTempFile("dbtraining-", ".jfr");
+            try {
+                recording.dump(file);
+                logger.info("Stopped JFR recording, {} bytes", Files.size(file));
+                return new WebEndpointResponse<>(new ByteArrayResource(Files.readAllBytes(file)));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not dump JFR recording", e);
+        } finally {
+            closeRecording();
+        }
+    }
+
+    private void closeRecording() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+}
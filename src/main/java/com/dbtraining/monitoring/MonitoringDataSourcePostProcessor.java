@@ -0,0 +1,42 @@
+package com.dbtraining.monitoring;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps the application DataSource in a {@link SessionTaggingDataSource} and a {@link SqlStatsDataSource}. Checked
+ * at runtime rather than with {@code @ConditionalOnProperty}, which Spring AOT would evaluate at build time.
+ */
+@Component
+public class MonitoringDataSourcePostProcessor implements BeanPostProcessor {
+
+    private final ObjectProvider<SqlStatsProperties> sqlStatsProperties;
+    private final ObjectProvider<WaitEventProperties> waitEventProperties;
+    private final ObjectProvider<SqlStatementStats> stats;
+
+    public MonitoringDataSourcePostProcessor(ObjectProvider<SqlStatsProperties> sqlStatsProperties,
+                                             ObjectProvider<WaitEventProperties> waitEventProperties,
+                                             ObjectProvider<SqlStatementStats> stats) {
+        this.sqlStatsProperties = sqlStatsProperties;
+        this.waitEventProperties = waitEventProperties;
+        this.stats = stats;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof DataSource dataSource) || bean instanceof SqlStatsDataSource
+                || bean instanceof SessionTaggingDataSource) {
+            return bean;
+        }
+        if (waitEventProperties.getObject().tagSessions()) {
+            dataSource = new SessionTaggingDataSource(dataSource);
+        }
+        if (sqlStatsProperties.getObject().enabled()) {
+            dataSource = new SqlStatsDataSource(dataSource, stats.getObject());
+        }
+        return dataSource;
+    }
+}
@@ -0,0 +1,16 @@
+package com.dbtraining.monitoring;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.virtual-threads.pinning-monitor")
+public record PinningMonitorProperties(
+        // Only used when spring.threads.virtual.enabled is true
+        @DefaultValue("true") boolean enabled,
+        // Pinned periods shorter than this are not recorded by JFR
+        @DefaultValue("5ms") Duration threshold,
+        // Distinct pinning stack traces logged at WARN before going quiet
+        @DefaultValue("50") int maxLoggedSites) {
+}
@@ -0,0 +1,47 @@
+package com.dbtraining.monitoring;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Sets application_name to the {@link DbSessionTag} of the thread taking the connection. pgjdbc only sends the SET
+ * when the value differs from the connection's current one, so a connection reused by the same endpoint costs
+ * nothing extra.
+ */
+public class SessionTaggingDataSource extends DelegatingDataSource implements AutoCloseable {
+
+    public SessionTaggingDataSource(DataSource target) {
+        super(target);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return tag(obtainTargetDataSource().getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return tag(obtainTargetDataSource().getConnection(username, password));
+    }
+
+    // The context only closes the exposed bean, so the pool behind it is closed from here
+    @Override
+    public void close() throws Exception {
+        if (getTargetDataSource() instanceof AutoCloseable target) {
+            target.close();
+        }
+    }
+
+    private static Connection tag(Connection connection) throws SQLException {
+        try {
+            connection.setClientInfo("ApplicationName", DbSessionTag.current());
+            return connection;
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+}
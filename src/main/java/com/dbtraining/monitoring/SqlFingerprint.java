@@ -0,0 +1,163 @@
+package com.dbtraining.monitoring;
+
+/**
+ * Normalizes SQL the way pg_stat_statements groups it: literals and bind markers become ?, comments and
+ * whitespace runs are dropped, and IN lists or multi-row VALUES collapse so that every batch size maps to
+ * the same fingerprint.
+ */
+final class SqlFingerprint {
+
+    private static final String LIST = "(?, ...)";
+
+    private SqlFingerprint() {
+    }
+
+    static String of(String sql) {
+        return collapseLists(normalize(sql));
+    }
+
+    private static String normalize(String sql) {
+        var out = new StringBuilder(Math.min(sql.length(), 1024));
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                i = skipQuoted(sql, i + 1, '\'');
+                out.append('?');
+            } else if (c == '"') {
+                int end = skipQuoted(sql, i + 1, '"');
+                out.append(sql, i, end);
+                i = end;
+            } else if (c == '-' && i + 1 < n && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? n : end;
+            } else if (c == '/' && i + 1 < n && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? n : end + 2;
+            } else if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (!out.isEmpty() && out.charAt(out.length() - 1) != '(' && out.charAt(out.length() - 1) != ' ') {
+                    out.append(' ');
+                }
+            } else if (c == ',') {
+                trimTrailingSpace(out);
+                out.append(", ");
+                i++;
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+            } else if (c == ')') {
+                trimTrailingSpace(out);
+                out.append(c);
+                i++;
+            } else if ((Character.isDigit(c) || c == '$' && i + 1 < n && Character.isDigit(sql.charAt(i + 1)))
+                    && !precededByIdentifier(out)) {
+                i++;
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                out.append('?');
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        trimTrailingSpace(out);
+        return out.toString();
+    }
+
+    // (?), (?, ?, ?) and runs of them separated by commas, as produced by IN lists and multi-row VALUES
+    private static String collapseLists(String sql) {
+        if (sql.indexOf("), (") < 0 && sql.indexOf("(?") < 0) {
+            return sql;
+        }
+        var out = new StringBuilder(Math.min(sql.length(), 1024));
+        int i = 0;
+        while (i < sql.length()) {
+            int end = sql.charAt(i) == '(' ? placeholderListEnd(sql, i) : -1;
+            if (end > 0) {
+                out.append(end - i > 3 ? LIST : "(?)");
+                int next;
+                boolean repeated = false;
+                while (sql.startsWith(", (", end) && (next = placeholderListEnd(sql, end + 2)) > 0) {
+                    end = next;
+                    repeated = true;
+                }
+                if (repeated) {
+                    out.append(", ...");
+                }
+                i = end;
+                continue;
+            }
+            // Rows with expressions, like (nextval(?), ?, currval(?), ?), only collapse when identical
+            end = sql.charAt(i) == '(' ? groupEnd(sql, i) : -1;
+            if (end > 0 && sql.startsWith(", ", end) && sql.startsWith(sql.substring(i, end), end + 2)) {
+                int length = end - i;
+                out.append(sql, i, end).append(", ...");
+                while (sql.startsWith(", ", end) && sql.regionMatches(end + 2, sql, i, length)) {
+                    end += 2 + length;
+                }
+                i = end;
+                continue;
+            }
+            out.append(sql.charAt(i++));
+        }
+        return out.toString();
+    }
+
+    private static int groupEnd(String sql, int open) {
+        int depth = 0;
+        for (int i = open; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int placeholderListEnd(String sql, int open) {
+        int i = open + 1;
+        if (i >= sql.length() || sql.charAt(i) != '?') {
+            return -1;
+        }
+        i++;
+        while (sql.startsWith(", ?", i)) {
+            i += 3;
+        }
+        return i < sql.length() && sql.charAt(i) == ')' ? i + 1 : -1;
+    }
+
+    private static int skipQuoted(String sql, int i, char quote) {
+        while (i < sql.length()) {
+            if (sql.charAt(i) == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean precededByIdentifier(StringBuilder out) {
+        if (out.isEmpty()) {
+            return false;
+        }
+        char last = out.charAt(out.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_';
+    }
+
+    private static void trimTrailingSpace(StringBuilder out) {
+        if (!out.isEmpty() && out.charAt(out.length() - 1) == ' ') {
+            out.setLength(out.length() - 1);
+        }
+    }
+}
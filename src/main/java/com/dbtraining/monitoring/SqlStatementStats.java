@@ -0,0 +1,245 @@
+package com.dbtraining.monitoring;
+
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * pg_stat_statements-style statistics measured on the client: calls, rows and an execution time histogram per
+ * SQL fingerprint. Each thread records into its own buffer with plain ordered writes, so the hot path never
+ * contends; readers merge the buffers, and the buffers of finished threads are folded into a shared total.
+ */
+@Component
+public class SqlStatementStats {
+
+    static final String OTHER = "<other>";
+
+    private static final int CALLS = 0;
+    private static final int TIME = 1;
+    private static final int ROWS = 2;
+    private static final int MAX = 3;
+    private static final int FIRST_BUCKET = 4;
+    // Bucket b counts executions below 2^b microseconds, the last one everything from ~16s up
+    private static final int BUCKETS = 25;
+    private static final int SLOTS = FIRST_BUCKET + BUCKETS;
+    private static final int MAX_CACHED_SQL_LENGTH = 4096;
+    private static final int FOLD_EVERY_REGISTRATIONS = 256;
+
+    private final SqlStatsProperties properties;
+    private final Map<String, String> fingerprintCache = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> fingerprints = new ConcurrentHashMap<>();
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final ConcurrentLinkedQueue<ThreadBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger registrations = new AtomicInteger();
+    private final ThreadLocal<ThreadBuffer> localBuffer = ThreadLocal.withInitial(this::register);
+    // Bumped by reset(), a buffer clears its maxima the next time its thread records
+    private volatile int generation;
+
+    // Guarded by this, only touched by readers
+    private final Map<String, long[]> retired = new HashMap<>();
+    private Map<String, long[]> baseline = Map.of();
+    private Instant since = Instant.now();
+
+    public SqlStatementStats(SqlStatsProperties properties) {
+        this.properties = properties;
+    }
+
+    public record FingerprintStats(String id, String sql, long calls, long rows, double totalMs, double meanMs,
+                                   double maxMs, double p50Ms, double p95Ms, double p99Ms) {
+    }
+
+    String fingerprint(String sql) {
+        if (sql.length() > MAX_CACHED_SQL_LENGTH) {
+            return admit(SqlFingerprint.of(sql));
+        }
+        String cached = fingerprintCache.get(sql);
+        if (cached == null) {
+            if (fingerprintCache.size() >= properties.maxFingerprints() * 4) {
+                fingerprintCache.clear();
+            }
+            cached = admit(SqlFingerprint.of(sql));
+            fingerprintCache.put(sql, cached);
+        }
+        return cached;
+    }
+
+    void record(String fingerprint, long calls, long nanos, long rows) {
+        ThreadBuffer buffer = localBuffer.get();
+        if (buffer.generation != generation) {
+            buffer.clearMaxima(generation);
+        }
+        AtomicLongArray counters = buffer.counters(fingerprint);
+        long micros = nanos / 1000;
+        add(counters, CALLS, calls);
+        add(counters, TIME, nanos);
+        add(counters, ROWS, rows);
+        if (nanos > counters.get(MAX)) {
+            counters.lazySet(MAX, nanos);
+        }
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        add(counters, FIRST_BUCKET + bucket, calls);
+    }
+
+    void recordRows(String fingerprint, long rows) {
+        if (rows > 0) {
+            add(localBuffer.get().counters(fingerprint), ROWS, rows);
+        }
+    }
+
+    public synchronized List<FingerprintStats> top(int limit) {
+        var stats = new ArrayList<FingerprintStats>();
+        totals().forEach((fingerprint, total) -> {
+            long[] base = baseline.get(fingerprint);
+            long[] values = base == null ? total : subtract(total, base);
+            if (values[CALLS] > 0) {
+                stats.add(toStats(fingerprint, values));
+            }
+        });
+        stats.sort(Comparator.comparingDouble(FingerprintStats::totalMs).reversed());
+        return stats.size() > limit ? List.copyOf(stats.subList(0, limit)) : stats;
+    }
+
+    public int size() {
+        return fingerprints.size();
+    }
+
+    public synchronized Instant since() {
+        return since;
+    }
+
+    public synchronized void reset() {
+        generation++;
+        baseline = totals();
+        retired.values().forEach(values -> values[MAX] = 0);
+        since = Instant.now();
+    }
+
+    // A slot is taken before the fingerprint is added, so concurrent callers cannot admit more than the maximum
+    private String admit(String fingerprint) {
+        int max = properties.maxFingerprints();
+        Boolean admittedNow = fingerprints.computeIfAbsent(fingerprint,
+                f -> admitted.getAndUpdate(n -> Math.min(n + 1, max)) < max ? Boolean.TRUE : null);
+        return admittedNow == null ? OTHER : fingerprint;
+    }
+
+    private ThreadBuffer register() {
+        var buffer = new ThreadBuffer(Thread.currentThread());
+        buffers.add(buffer);
+        // Virtual threads come and go with every request, keep the number of live buffers bounded
+        if (registrations.incrementAndGet() % FOLD_EVERY_REGISTRATIONS == 0) {
+            synchronized (this) {
+                foldFinishedThreads();
+            }
+        }
+        return buffer;
+    }
+
+    private Map<String, long[]> totals() {
+        foldFinishedThreads();
+        var totals = new HashMap<String, long[]>();
+        retired.forEach((fingerprint, values) -> totals.put(fingerprint, values.clone()));
+        for (ThreadBuffer buffer : buffers) {
+            buffer.addTo(totals, generation);
+        }
+        return totals;
+    }
+
+    // Everything a terminated thread wrote is visible once isAlive() returns false
+    private void foldFinishedThreads() {
+        var iterator = buffers.iterator();
+        while (iterator.hasNext()) {
+            ThreadBuffer buffer = iterator.next();
+            if (!buffer.owner.isAlive()) {
+                buffer.addTo(retired, generation);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static FingerprintStats toStats(String fingerprint, long[] values) {
+        long calls = values[CALLS];
+        double totalMs = values[TIME] / 1_000_000.0;
+        return new FingerprintStats(id(fingerprint), fingerprint, calls, values[ROWS], totalMs, totalMs / calls,
+                values[MAX] / 1_000_000.0, percentile(values, 0.50), percentile(values, 0.95), percentile(values, 0.99));
+    }
+
+    static String id(String fingerprint) {
+        return String.format("%08x", fingerprint.hashCode());
+    }
+
+    // Upper bound of the histogram bucket holding the percentile, at most 2x above the real value and capped by the max
+    private static double percentile(long[] values, double percentile) {
+        long rank = (long) Math.ceil(values[CALLS] * percentile);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += values[FIRST_BUCKET + bucket];
+            if (seen >= rank) {
+                return Math.min(values[MAX] / 1_000_000.0, bucket == BUCKETS - 1 ? Double.MAX_VALUE : (1L << bucket) / 1000.0);
+            }
+        }
+        return values[MAX] / 1_000_000.0;
+    }
+
+    private static long[] subtract(long[] total, long[] base) {
+        long[] values = total.clone();
+        for (int i = 0; i < SLOTS; i++) {
+            if (i != MAX) {
+                values[i] -= base[i];
+            }
+        }
+        return values;
+    }
+
+    // Single writer per buffer: an ordered store is enough, no CAS needed
+    private static void add(AtomicLongArray counters, int slot, long delta) {
+        counters.lazySet(slot, counters.get(slot) + delta);
+    }
+
+    private static final class ThreadBuffer {
+        private final Thread owner;
+        private final Map<String, AtomicLongArray> counters = new ConcurrentHashMap<>();
+        // Written by the owner after clearing the maxima, the maxima only count while it matches the stats
+        private volatile int generation;
+
+        private ThreadBuffer(Thread owner) {
+            this.owner = owner;
+        }
+
+        private AtomicLongArray counters(String fingerprint) {
+            AtomicLongArray values = counters.get(fingerprint);
+            if (values == null) {
+                values = new AtomicLongArray(SLOTS);
+                counters.put(fingerprint, values);
+            }
+            return values;
+        }
+
+        private void clearMaxima(int current) {
+            counters.values().forEach(values -> values.lazySet(MAX, 0));
+            generation = current;
+        }
+
+        private void addTo(Map<String, long[]> totals, int current) {
+            boolean maxima = generation == current;
+            counters.forEach((fingerprint, values) -> {
+                long[] total = totals.computeIfAbsent(fingerprint, f -> new long[SLOTS]);
+                for (int i = 0; i < SLOTS; i++) {
+                    if (i != MAX) {
+                        total[i] += values.get(i);
+                    } else if (maxima) {
+                        total[i] = Math.max(total[i], values.get(i));
+                    }
+                }
+            });
+        }
+    }
+}
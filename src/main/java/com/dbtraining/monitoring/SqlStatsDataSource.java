@@ -0,0 +1,237 @@
+package com.dbtraining.monitoring;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times every statement executed through the wrapped DataSource and records it in {@link SqlStatementStats}.
+ * Execution time covers the execute call only, like pg_stat_statements; rows returned by queries are counted as
+ * the ResultSet is read. Statements have to be prepared on the wrapped connection to be counted; COPY through
+ * the CopyManager of the unwrapped PgConnection bypasses the wrapper and is not.
+ */
+public class SqlStatsDataSource extends DelegatingDataSource implements AutoCloseable {
+
+    private final SqlStatementStats stats;
+
+    public SqlStatsDataSource(DataSource target, SqlStatementStats stats) {
+        super(target);
+        this.stats = stats;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return proxy(Connection.class, new ConnectionHandler(obtainTargetDataSource().getConnection()));
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return proxy(Connection.class, new ConnectionHandler(obtainTargetDataSource().getConnection(username, password)));
+    }
+
+    // Spring infers the destroy method from this wrapper, not from the pool it wraps
+    @Override
+    public void close() throws Exception {
+        if (getTargetDataSource() instanceof AutoCloseable target) {
+            target.close();
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(SqlStatsDataSource.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Object identity(Object proxy, Method method, Object[] args) {
+        return switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            default -> null;
+        };
+    }
+
+    private final class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+
+        private ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object identity = identity(proxy, method, args);
+            if (identity != null) {
+                return identity;
+            }
+            Object result = SqlStatsDataSource.invoke(target, method, args);
+            return switch (method.getName()) {
+                case "createStatement" -> proxy(Statement.class, new StatementHandler((Statement) result, null));
+                case "prepareStatement" -> proxy(PreparedStatement.class,
+                        new StatementHandler((Statement) result, stats.fingerprint((String) args[0])));
+                case "prepareCall" -> proxy(CallableStatement.class,
+                        new StatementHandler((Statement) result, stats.fingerprint((String) args[0])));
+                default -> result;
+            };
+        }
+    }
+
+    private final class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        // Null for plain statements, whose SQL comes with each execute call
+        private final String fingerprint;
+        private final List<String> batchedSql = new ArrayList<>();
+        private int batched;
+
+        private StatementHandler(Statement target, String fingerprint) {
+            this.target = target;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object identity = identity(proxy, method, args);
+            if (identity != null) {
+                return identity;
+            }
+            return switch (method.getName()) {
+                case "executeQuery", "executeUpdate", "executeLargeUpdate", "execute" -> execute(method, args);
+                case "executeBatch", "executeLargeBatch" -> executeBatch(method, args);
+                case "addBatch" -> {
+                    if (args != null && args.length == 1) {
+                        batchedSql.add((String) args[0]);
+                    } else {
+                        batched++;
+                    }
+                    yield SqlStatsDataSource.invoke(target, method, args);
+                }
+                case "clearBatch" -> {
+                    batchedSql.clear();
+                    batched = 0;
+                    yield SqlStatsDataSource.invoke(target, method, args);
+                }
+                case "getResultSet" -> resultSet((ResultSet) SqlStatsDataSource.invoke(target, method, args),
+                        fingerprint);
+                default -> SqlStatsDataSource.invoke(target, method, args);
+            };
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            String statement = args != null && args.length > 0 ? stats.fingerprint((String) args[0]) : fingerprint;
+            long rows = 0;
+            long start = System.nanoTime();
+            try {
+                Object result = SqlStatsDataSource.invoke(target, method, args);
+                if (result instanceof ResultSet resultSet) {
+                    return resultSet(resultSet, statement);
+                }
+                if (result instanceof Number count) {
+                    rows = count.longValue();
+                } else if (Boolean.FALSE.equals(result)) {
+                    rows = Math.max(0, target.getUpdateCount());
+                }
+                return result;
+            } finally {
+                stats.record(statement, 1, System.nanoTime() - start, rows);
+            }
+        }
+
+        private Object executeBatch(Method method, Object[] args) throws Throwable {
+            long start = System.nanoTime();
+            Object counts = null;
+            try {
+                counts = SqlStatsDataSource.invoke(target, method, args);
+                return counts;
+            } finally {
+                long nanos = System.nanoTime() - start;
+                if (fingerprint != null) {
+                    stats.record(fingerprint, Math.max(1, batched), nanos, sum(counts, 0, Integer.MAX_VALUE));
+                } else {
+                    // Different statements in one batch, split the round trip evenly between them
+                    for (int i = 0; i < batchedSql.size(); i++) {
+                        stats.record(stats.fingerprint(batchedSql.get(i)), 1, nanos / batchedSql.size(), sum(counts, i, i + 1));
+                    }
+                }
+                batchedSql.clear();
+                batched = 0;
+            }
+        }
+
+        private Object resultSet(ResultSet resultSet, String statement) {
+            if (resultSet == null || statement == null) {
+                return resultSet;
+            }
+            return proxy(ResultSet.class, new ResultSetHandler(resultSet, statement));
+        }
+    }
+
+    private final class ResultSetHandler implements InvocationHandler {
+        private final ResultSet target;
+        private final String fingerprint;
+        private long rows;
+
+        private ResultSetHandler(ResultSet target, String fingerprint) {
+            this.target = target;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object identity = identity(proxy, method, args);
+            if (identity != null) {
+                return identity;
+            }
+            Object result = SqlStatsDataSource.invoke(target, method, args);
+            switch (method.getName()) {
+                case "next" -> {
+                    if (Boolean.TRUE.equals(result)) {
+                        rows++;
+                    } else {
+                        flushRows();
+                    }
+                }
+                case "close" -> flushRows();
+                default -> {
+                }
+            }
+            return result;
+        }
+
+        private void flushRows() {
+            stats.recordRows(fingerprint, rows);
+            rows = 0;
+        }
+    }
+
+    private static long sum(Object counts, int from, int to) {
+        long rows = 0;
+        if (counts instanceof int[] ints) {
+            for (int i = from; i < Math.min(to, ints.length); i++) {
+                rows += Math.max(0, ints[i]);
+            }
+        } else if (counts instanceof long[] longs) {
+            for (int i = from; i < Math.min(to, longs.length); i++) {
+                rows += Math.max(0, longs[i]);
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,42 @@
+package com.dbtraining.monitoring;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client-side statement statistics: GET /actuator/sqlstats lists the fingerprints by total execution time,
+ * DELETE starts a new measurement window.
+ */
+@Component
+@Endpoint(id = "sqlstats")
+public class SqlStatsEndpoint {
+
+    private final SqlStatementStats stats;
+
+    public SqlStatsEndpoint(SqlStatementStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @param limit number of fingerprints returned, 50 when omitted
+     */
+    @ReadOperation
+    public Map<String, Object> statements(@Nullable Integer limit) {
+        var result = new LinkedHashMap<String, Object>();
+        result.put("since", stats.since());
+        result.put("fingerprints", stats.size());
+        result.put("statements", stats.top(limit == null ? 50 : limit));
+        return result;
+    }
+
+    @DeleteOperation
+    public void reset() {
+        stats.reset();
+    }
+}
@@ -0,0 +1,87 @@
+package com.dbtraining.monitoring;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Publishes the top fingerprints by total execution time as app.sql.statement.* gauges, tagged with the
+ * fingerprint id and its normalized SQL. Fingerprints that drop out of the top-N are removed from the registry.
+ */
+@Component
+public class SqlStatsMetrics implements SmartLifecycle {
+
+    private static final int MAX_SQL_TAG_LENGTH = 200;
+
+    private final SqlStatementStats stats;
+    private final SqlStatsProperties properties;
+    private final List<Gauge> gauges;
+    private ScheduledExecutorService scheduler;
+
+    private record Gauge(MultiGauge meter, ToDoubleFunction<SqlStatementStats.FingerprintStats> value) {
+    }
+
+    public SqlStatsMetrics(SqlStatementStats stats, SqlStatsProperties properties, MeterRegistry meterRegistry) {
+        this.stats = stats;
+        this.properties = properties;
+        this.gauges = List.of(
+                gauge(meterRegistry, "app.sql.statement.calls", "Executions of the statement", null,
+                        SqlStatementStats.FingerprintStats::calls),
+                gauge(meterRegistry, "app.sql.statement.rows", "Rows returned or affected by the statement", null,
+                        SqlStatementStats.FingerprintStats::rows),
+                gauge(meterRegistry, "app.sql.statement.time", "Total execution time of the statement", "seconds",
+                        s -> s.totalMs() / 1000),
+                gauge(meterRegistry, "app.sql.statement.time.p99", "99th percentile execution time of the statement",
+                        "seconds", s -> s.p99Ms() / 1000));
+    }
+
+    private static Gauge gauge(MeterRegistry registry, String name, String description, String unit,
+                               ToDoubleFunction<SqlStatementStats.FingerprintStats> value) {
+        return new Gauge(MultiGauge.builder(name).description(description).baseUnit(unit).register(registry), value);
+    }
+
+    @Override
+    public void start() {
+        if (!properties.enabled()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("sql-stats-publisher").daemon().factory());
+        long interval = properties.publishInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::publish, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return scheduler != null;
+    }
+
+    private void publish() {
+        var top = stats.top(properties.topN());
+        for (Gauge gauge : gauges) {
+            gauge.meter().register(top.stream()
+                    .<MultiGauge.Row<?>>map(s -> MultiGauge.Row.of(Tags.of("fingerprint", s.id(), "sql", truncate(s.sql())),
+                            gauge.value().applyAsDouble(s)))
+                    .toList(), true);
+        }
+    }
+
+    private static String truncate(String sql) {
+        return sql.length() > MAX_SQL_TAG_LENGTH ? sql.substring(0, MAX_SQL_TAG_LENGTH) + "..." : sql;
+    }
+}
@@ -0,0 +1,18 @@
+package com.dbtraining.monitoring;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.sql-stats")
+public record SqlStatsProperties(
+        // Wrap the DataSource and aggregate every JDBC statement by fingerprint
+        @DefaultValue("true") boolean enabled,
+        // Fingerprints published to Prometheus, ordered by total execution time
+        @DefaultValue("20") int topN,
+        // Distinct fingerprints tracked before new ones are counted as "<other>"
+        @DefaultValue("2000") int maxFingerprints,
+        // How often the top-N gauges are recomputed
+        @DefaultValue("15s") Duration publishInterval) {
+}
@@ -0,0 +1,59 @@
+package com.dbtraining.monitoring;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the SQL Hibernate prepares on the current thread while a capture is open, so a benchmark can report how
+ * many statements it issued and which texts. Hibernate prepares a statement for every execution, statements run
+ * directly on the JDBC connection are added with {@link Capture#record(String)}.
+ */
+@Component
+public class StatementCapture implements StatementInspector, HibernatePropertiesCustomizer {
+
+    private static final ThreadLocal<Capture> CURRENT = new ThreadLocal<>();
+
+    @Override
+    public void customize(Map<String, Object> hibernateProperties) {
+        hibernateProperties.put(AvailableSettings.STATEMENT_INSPECTOR, this);
+    }
+
+    @Override
+    public String inspect(String sql) {
+        Capture capture = CURRENT.get();
+        if (capture != null) {
+            capture.record(sql);
+        }
+        return sql;
+    }
+
+    public static Capture start() {
+        var capture = new Capture();
+        CURRENT.set(capture);
+        return capture;
+    }
+
+    public static final class Capture implements AutoCloseable {
+
+        private final List<String> statements = new ArrayList<>();
+
+        public void record(String sql) {
+            statements.add(sql);
+        }
+
+        public List<String> statements() {
+            return statements;
+        }
+
+        @Override
+        public void close() {
+            CURRENT.remove();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.dbtraining.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * JFR event for one phase of a bulk insert strategy or a DataLoader stage. Costs next to nothing unless a recording
+ * with the event enabled is running, see JfrRecordingEndpoint.
+ */
+@Name("com.dbtraining.StrategyPhase")
+@Label("Strategy Phase")
+@Category({"DB Training", "Bulk Inserts"})
+@Description("Random data generation, payload build, statement execution or commit of a bulk insert")
+@StackTrace(false)
+public class StrategyPhaseEvent extends Event {
+
+    public static final String GENERATE = "generate";
+    public static final String BUILD_PAYLOAD = "build payload";
+    public static final String EXECUTE = "execute";
+    public static final String COMMIT = "commit";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Table")
+    String table;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Rows")
+    long rows;
+
+    public static StrategyPhaseEvent begin(String operation, String table, String phase) {
+        var event = new StrategyPhaseEvent();
+        event.operation = operation;
+        event.table = table;
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    public void finish(long rows) {
+        this.rows = rows;
+        commit();
+    }
+
+    /**
+     * Records the commit of the current transaction, flush included, as a COMMIT phase.
+     */
+    public static void recordCommit(String operation, String table, long rows) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            private StrategyPhaseEvent event;
+
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                event = StrategyPhaseEvent.begin(operation, table, COMMIT);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (event != null && status == STATUS_COMMITTED) {
+                    event.finish(rows);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,106 @@
+package com.dbtraining.monitoring;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Streams JFR jdk.VirtualThreadPinned events and publishes them as the app.virtual.threads.pinned timer, tagged with
+ * the library the pinned thread was in (pgjdbc, hikari, hibernate, application or other). A virtual thread that
+ * blocks while holding a monitor keeps its carrier thread, so enough of them starve every other virtual thread.
+ */
+@Component
+public class VirtualThreadPinningMonitor implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private static final List<String[]> LIBRARIES = List.of(
+            new String[]{"org.postgresql.", "pgjdbc"},
+            new String[]{"com.zaxxer.hikari.", "hikari"},
+            new String[]{"org.hibernate.", "hibernate"},
+            new String[]{"com.dbtraining.", "application"});
+
+    private final PinningMonitorProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Environment environment;
+    private final Set<String> loggedSites = ConcurrentHashMap.newKeySet();
+    private RecordingStream recordingStream;
+
+    public VirtualThreadPinningMonitor(PinningMonitorProperties properties, MeterRegistry meterRegistry, Environment environment) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.environment = environment;
+    }
+
+    @Override
+    public void start() {
+        if (!properties.enabled() || !Threading.VIRTUAL.isActive(environment)) {
+            return;
+        }
+        recordingStream = new RecordingStream();
+        recordingStream.enable(PINNED_EVENT).withThreshold(properties.threshold()).withStackTrace();
+        recordingStream.onEvent(PINNED_EVENT, this::onPinned);
+        recordingStream.startAsync();
+        logger.info("Monitoring virtual thread pinning longer than {}", properties.threshold());
+    }
+
+    @Override
+    public void stop() {
+        if (recordingStream != null) {
+            recordingStream.close();
+            recordingStream = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return recordingStream != null;
+    }
+
+    private void onPinned(RecordedEvent event) {
+        List<RecordedFrame> frames = event.getStackTrace() == null ? List.of() : event.getStackTrace().getFrames();
+        String library = library(frames);
+        Timer.builder("app.virtual.threads.pinned")
+                .description("Time virtual threads spent pinned to their carrier thread")
+                .tag("library", library)
+                .register(meterRegistry)
+                .record(event.getDuration());
+
+        String site = frames.stream().limit(12).map(VirtualThreadPinningMonitor::format)
+                .collect(Collectors.joining("\n\tat "));
+        if (loggedSites.size() < properties.maxLoggedSites() && loggedSites.add(site)) {
+            logger.warn("Virtual thread pinned for {} ms in {}:\n\tat {}", event.getDuration().toMillis(), library, site);
+        }
+    }
+
+    // The first known library from the top of the stack is where the pinned thread blocked
+    private static String library(List<RecordedFrame> frames) {
+        for (RecordedFrame frame : frames) {
+            String type = frame.getMethod().getType().getName();
+            for (String[] library : LIBRARIES) {
+                if (type.startsWith(library[0])) {
+                    return library[1];
+                }
+            }
+        }
+        return "other";
+    }
+
+    private static String format(RecordedFrame frame) {
+        return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+    }
+}
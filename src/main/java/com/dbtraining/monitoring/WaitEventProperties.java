@@ -0,0 +1,15 @@
+package com.dbtraining.monitoring;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.wait-events")
+public record WaitEventProperties(
+        // Sample pg_stat_activity and pg_locks into the app.db.wait.* metrics
+        @DefaultValue("true") boolean enabled,
+        @DefaultValue("1s") Duration interval,
+        // Set application_name to the endpoint when a connection is taken from the pool
+        @DefaultValue("true") boolean tagSessions) {
+}
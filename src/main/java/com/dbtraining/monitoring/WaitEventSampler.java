@@ -0,0 +1,152 @@
+package com.dbtraining.monitoring;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Active session history for this database: samples pg_stat_activity and pg_locks at a fixed interval and adds the
+ * interval to app.db.wait.time for every busy session, tagged with its endpoint (application_name) and wait event.
+ * The rate of the counter is the average number of sessions of an endpoint in that wait. Lock waits also count
+ * towards app.db.lock.wait.time with the lock and the endpoint of the first blocking session.
+ * <p>
+ * Runs on its own connection outside the pool, so it keeps sampling when the pool is exhausted.
+ */
+@Component
+public class WaitEventSampler implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(WaitEventSampler.class);
+    private static final String APPLICATION_NAME = "dbtraining-wait-sampler";
+
+    private static final String SAMPLE_SQL = """
+            SELECT a.application_name, a.state,
+                   coalesce(a.wait_event_type, 'CPU') AS wait_event_type,
+                   coalesce(a.wait_event, 'Running') AS wait_event,
+                   l.locktype, l.mode,
+                   CASE WHEN a.wait_event_type = 'Lock' THEN
+                       (SELECT b.application_name FROM pg_stat_activity b WHERE b.pid = (pg_blocking_pids(a.pid))[1])
+                   END AS blocked_by
+            FROM pg_stat_activity a
+            LEFT JOIN LATERAL (SELECT locktype, mode FROM pg_locks
+                               WHERE pid = a.pid AND NOT granted LIMIT 1) l ON true
+            WHERE a.datname = current_database()
+              AND a.backend_type = 'client backend'
+              AND a.state IN ('active', 'idle in transaction')
+              AND a.pid <> pg_backend_pid()
+            """;
+
+    private final WaitEventProperties properties;
+    private final DataSourceProperties dataSourceProperties;
+    private final MeterRegistry meterRegistry;
+    private ScheduledExecutorService scheduler;
+    private Connection connection;
+    private boolean failing;
+
+    public WaitEventSampler(WaitEventProperties properties, DataSourceProperties dataSourceProperties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.dataSourceProperties = dataSourceProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void start() {
+        if (!properties.enabled()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("wait-event-sampler").daemon().factory());
+        long interval = properties.interval().toMillis();
+        scheduler.scheduleAtFixedRate(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+        logger.info("Sampling database wait events every {}", properties.interval());
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            closeConnection();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return scheduler != null;
+    }
+
+    private void sample() {
+        double seconds = properties.interval().toNanos() / 1e9;
+        try (Statement stmt = connection().createStatement(); ResultSet rs = stmt.executeQuery(SAMPLE_SQL)) {
+            while (rs.next()) {
+                String endpoint = orUnknown(rs.getString("application_name"));
+                String waitEventType = rs.getString("wait_event_type");
+                Counter.builder("app.db.wait.time")
+                        .description("Sampled time database sessions spent per endpoint and wait event")
+                        .baseUnit("seconds")
+                        .tag("endpoint", endpoint)
+                        .tag("state", rs.getString("state"))
+                        .tag("wait_event_type", waitEventType)
+                        .tag("wait_event", rs.getString("wait_event"))
+                        .register(meterRegistry)
+                        .increment(seconds);
+                if ("Lock".equals(waitEventType)) {
+                    Counter.builder("app.db.lock.wait.time")
+                            .description("Sampled time database sessions spent waiting for locks, with the blocking endpoint")
+                            .baseUnit("seconds")
+                            .tag("endpoint", endpoint)
+                            .tag("locktype", orUnknown(rs.getString("locktype")))
+                            .tag("mode", orUnknown(rs.getString("mode")))
+                            .tag("blocked_by", orUnknown(rs.getString("blocked_by")))
+                            .register(meterRegistry)
+                            .increment(seconds);
+                }
+            }
+            failing = false;
+        } catch (SQLException e) {
+            if (!failing) {
+                logger.warn("Could not sample database wait events, retrying every {}: {}", properties.interval(), e.getMessage());
+            }
+            failing = true;
+            closeConnection();
+        }
+    }
+
+    private Connection connection() throws SQLException {
+        if (connection == null) {
+            var info = new Properties();
+            info.setProperty("user", dataSourceProperties.determineUsername());
+            info.setProperty("password", dataSourceProperties.determinePassword());
+            info.setProperty("ApplicationName", APPLICATION_NAME);
+            connection = DriverManager.getConnection(dataSourceProperties.determineUrl(), info);
+        }
+        return connection;
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug("Could not close the wait event sampler connection", e);
+            }
+            connection = null;
+        }
+    }
+
+    private static String orUnknown(String value) {
+        return value == null || value.isEmpty() ? "unknown" : value;
+    }
+}
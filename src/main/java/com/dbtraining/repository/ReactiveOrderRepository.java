@@ -0,0 +1,86 @@
+package com.dbtraining.repository;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.pool.PoolMetrics;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import jakarta.annotation.PreDestroy;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcProperties;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Non-blocking read path on R2DBC, next to the JPA repositories. Uses its own fixed-size connection pool
+ * configured with spring.r2dbc.*.
+ */
+@Repository
+public class ReactiveOrderRepository {
+
+    private final ConnectionPool connectionPool;
+    private final DatabaseClient databaseClient;
+
+    public ReactiveOrderRepository(R2dbcProperties properties, MeterRegistry meterRegistry) {
+        var options = ConnectionFactoryOptions.parse(properties.getUrl()).mutate()
+                .option(ConnectionFactoryOptions.USER, properties.getUsername())
+                .option(ConnectionFactoryOptions.PASSWORD, properties.getPassword())
+                .build();
+        var pool = properties.getPool();
+        this.connectionPool = new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options))
+                .name("orders-reactive")
+                .initialSize(pool.getInitialSize())
+                .maxSize(pool.getMaxSize())
+                .maxIdleTime(pool.getMaxIdleTime())
+                .build());
+        this.databaseClient = DatabaseClient.create(connectionPool);
+        registerPoolMetrics(meterRegistry);
+    }
+
+    public record OrderSummary(Long id, LocalDateTime orderDate, int numberOfItems, double totalAmount) {}
+
+    public Flux<OrderSummary> findOrderSummariesByUserEmail(String email) {
+        // Same figures as OrderN1SelectController, aggregated by the database in one statement
+        return databaseClient.sql("""
+                        SELECT o.id, o.order_date, count(oi.id) AS number_of_items,
+                               coalesce(sum(p.price * oi.quantity), 0) AS total_amount
+                        FROM orders o
+                        JOIN users u ON u.id = o.user_id
+                        LEFT JOIN order_items oi ON oi.order_id = o.id
+                        LEFT JOIN products p ON p.id = oi.product_id
+                        WHERE u.email = :email
+                        GROUP BY o.id, o.order_date
+                        """)
+                .bind("email", email)
+                .map((row, metadata) -> new OrderSummary(
+                        row.get("id", Long.class),
+                        row.get("order_date", LocalDateTime.class),
+                        row.get("number_of_items", Long.class).intValue(),
+                        row.get("total_amount", BigDecimal.class).doubleValue()))
+                .all();
+    }
+
+    private void registerPoolMetrics(MeterRegistry meterRegistry) {
+        registerPoolGauge(meterRegistry, "r2dbc.pool.acquired", PoolMetrics::acquiredSize);
+        registerPoolGauge(meterRegistry, "r2dbc.pool.idle", PoolMetrics::idleSize);
+        registerPoolGauge(meterRegistry, "r2dbc.pool.pending", PoolMetrics::pendingAcquireSize);
+        registerPoolGauge(meterRegistry, "r2dbc.pool.max.allocated", PoolMetrics::getMaxAllocatedSize);
+    }
+
+    private void registerPoolGauge(MeterRegistry meterRegistry, String name, ToDoubleFunction<PoolMetrics> value) {
+        Gauge.builder(name, connectionPool, pool -> pool.getMetrics().map(value::applyAsDouble).orElse(0.0))
+                .tag("name", "orders-reactive")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void close() {
+        connectionPool.dispose();
+    }
+}
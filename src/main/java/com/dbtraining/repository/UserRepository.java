@@ -2,6 +2,13 @@ package com.dbtraining.repository;
 
 import com.dbtraining.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
 
 public interface UserRepository extends JpaRepository<User, Long> {
+    // Emails are not unique, the generated ones repeat
+    @Query("SELECT u.id FROM User u WHERE u.email = :email ORDER BY u.id")
+    List<Long> findIdsByEmail(@Param("email") String email);
 }
@@ -0,0 +1,28 @@
+package com.dbtraining.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.archive")
+public record OrderArchiveProperties(
+        // Orders with an order_date further back than this move to orders_archive, their items to order_items_archive
+        @DefaultValue("180d") Duration olderThan,
+        // Upper bound of orders moved per transaction, the batch shrinks to stay within max-lock-time
+        @DefaultValue("1000") int batchSize,
+        @DefaultValue("50") int minBatchSize,
+        // Target duration of one batch transaction, which is how long it holds its row locks. Also its lock_timeout
+        @DefaultValue("200ms") Duration maxLockTime,
+        // Pause between two batches, leaves room for the regular workload and for replicas to catch up
+        @DefaultValue("50ms") Duration pause,
+        // Waits before the next batch while a replica is further behind than this
+        @DefaultValue("64MB") DataSize maxReplicationLag,
+        // The batches look up items by order_id, which has no index of its own. Built CONCURRENTLY before the first batch
+        // when set; off by default since the missing index is part of what the N+1 and join benchmarks measure. Without
+        // the index a batch cannot stay within max-lock-time, so runs are refused until it exists
+        @DefaultValue("false") boolean createOrderIdIndex,
+        // Run the archival this often, 0 only runs it when started through POST /api/orders/archive
+        @DefaultValue("0s") Duration interval) {
+}
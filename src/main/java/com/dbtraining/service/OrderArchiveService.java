@@ -0,0 +1,430 @@
+package com.dbtraining.service;
+
+import com.dbtraining.monitoring.DbSessionTag;
+import com.dbtraining.sharding.ShardRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves old orders and their items into orders_archive and order_items_archive while the application keeps running.
+ * Each batch is one statement: it walks orders by id from where the previous batch stopped, deletes the old ones with
+ * their items and inserts the returned rows into the archive tables. Rows locked by someone else are skipped rather
+ * than waited for. The batch size adapts so a transaction, and with it its row locks, stays within max-lock-time.
+ */
+@Service
+public class OrderArchiveService implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderArchiveService.class);
+    private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+    private static final String ARCHIVE_BATCH_SQL = """
+            WITH batch AS (
+                SELECT id FROM orders
+                WHERE id > ? AND order_date < ?
+                ORDER BY id
+                LIMIT ?
+                FOR UPDATE SKIP LOCKED
+            ), moved_items AS (
+                DELETE FROM order_items oi USING batch b WHERE oi.order_id = b.id
+                RETURNING oi.*
+            ), archived_items AS (
+                INSERT INTO order_items_archive SELECT * FROM moved_items
+            ), moved_orders AS (
+                DELETE FROM orders o USING batch b WHERE o.id = b.id
+                RETURNING o.*
+            ), archived_orders AS (
+                INSERT INTO orders_archive SELECT * FROM moved_orders
+            )
+            SELECT (SELECT max(id) FROM batch), (SELECT count(*) FROM moved_orders), (SELECT count(*) FROM moved_items),
+                   (SELECT array_agg(DISTINCT user_id) FROM moved_orders)
+            """;
+
+    // Bytes of WAL the slowest replica has not replayed yet, 0 without replicas or without the rights to see them
+    private static final String REPLICATION_LAG_SQL = """
+            SELECT coalesce(max(pg_wal_lsn_diff(pg_current_wal_lsn(), replay_lsn)), 0) FROM pg_stat_replication
+            """;
+
+    private final DataSource dataSource;
+    private final OrderArchiveProperties properties;
+    private final ShardRouter shardRouter;
+    private final ApplicationEventPublisher eventPublisher;
+    private final AtomicReference<ArchiveStatus> current = new AtomicReference<>();
+    private final Counter archivedOrders;
+    private final Counter archivedItems;
+    private final Counter lockTimeouts;
+    private final Timer batchTimer;
+    private ScheduledExecutorService scheduler;
+    private volatile boolean running;
+
+    public OrderArchiveService(DataSource dataSource, OrderArchiveProperties properties, ShardRouter shardRouter,
+                               ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry) {
+        this.dataSource = dataSource;
+        this.properties = properties;
+        this.shardRouter = shardRouter;
+        this.eventPublisher = eventPublisher;
+        this.archivedOrders = Counter.builder("app.archive.orders")
+                .description("Orders moved to orders_archive")
+                .register(meterRegistry);
+        this.archivedItems = Counter.builder("app.archive.items")
+                .description("Order items moved to order_items_archive")
+                .register(meterRegistry);
+        this.lockTimeouts = Counter.builder("app.archive.lock.timeouts")
+                .description("Archive batches rolled back because a lock was not granted within max-lock-time")
+                .register(meterRegistry);
+        this.batchTimer = Timer.builder("app.archive.batch")
+                .description("Duration of an archive batch transaction")
+                .register(meterRegistry);
+        Gauge.builder("app.archive.batch.size", current, status -> status.get() == null ? 0 : status.get().batchSize)
+                .description("Orders per archive batch, adapted to max-lock-time")
+                .register(meterRegistry);
+        Gauge.builder("app.archive.orders.pending", current, status -> status.get() == null ? 0 : status.get().getPendingOrders())
+                .description("Orders of the current archive run that are still to be moved")
+                .register(meterRegistry);
+    }
+
+    public static final class ArchiveStatus {
+        private final LocalDateTime cutoff;
+        private final Instant startedAt = Instant.now();
+        private final AtomicLong totalOrders = new AtomicLong();
+        private final AtomicLong orders = new AtomicLong();
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong lockTimeouts = new AtomicLong();
+        private volatile int batchSize;
+        private volatile int shard;
+        private volatile long lastOrderId;
+        private volatile Instant finishedAt;
+        private volatile String error;
+        // Set by stop() or an interrupt, ends the run before its next batch
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+
+        private ArchiveStatus(LocalDateTime cutoff, int batchSize) {
+            this.cutoff = cutoff;
+            this.batchSize = batchSize;
+        }
+
+        public LocalDateTime getCutoff() {
+            return cutoff;
+        }
+
+        public String getState() {
+            if (error != null) {
+                return "FAILED";
+            }
+            return finishedAt == null ? "RUNNING" : completed ? "COMPLETED" : "STOPPED";
+        }
+
+        // Counted when a shard is started, orders locked by others at the time stay for the next run
+        public long getPendingOrders() {
+            return Math.max(0, totalOrders.get() - orders.get());
+        }
+
+        public long getArchivedOrders() {
+            return orders.get();
+        }
+
+        public long getArchivedItems() {
+            return items.get();
+        }
+
+        public long getBatches() {
+            return batches.get();
+        }
+
+        public long getLockTimeouts() {
+            return lockTimeouts.get();
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public long getLastOrderId() {
+            return lastOrderId;
+        }
+
+        public Duration getDuration() {
+            return Duration.between(startedAt, finishedAt != null ? finishedAt : Instant.now());
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isRunning() {
+            return finishedAt == null;
+        }
+    }
+
+    public ArchiveStatus status() {
+        return current.get();
+    }
+
+    /**
+     * Thrown instead of starting a run whose batches could not keep their locks within max-lock-time.
+     */
+    public static final class ArchiveRefusedException extends RuntimeException {
+        ArchiveRefusedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Starts an archive run in the background, or returns empty when one is still running.
+     *
+     * @throws ArchiveRefusedException when a shard has no index on order_items.order_id and
+     *                                 app.archive.create-order-id-index is off
+     */
+    public Optional<ArchiveStatus> startArchival() {
+        if (!properties.createOrderIdIndex()) {
+            checkOrderIdIndexes();
+        }
+        var status = new ArchiveStatus(LocalDateTime.now().minus(properties.olderThan()),
+                Math.max(properties.minBatchSize(), properties.batchSize()));
+        ArchiveStatus previous = current.get();
+        if (previous != null && previous.isRunning() || !current.compareAndSet(previous, status)) {
+            return Optional.empty();
+        }
+        Thread.ofPlatform().name("order-archive").start(() -> {
+            DbSessionTag.set("order-archive");
+            try {
+                boolean completed = true;
+                for (int shard = 0; shard < shardRouter.shardCount() && completed; shard++) {
+                    int target = shard;
+                    completed = shardRouter.onShard(target, () -> archive(status, target));
+                }
+                status.completed = completed;
+                logger.info("{} {} orders and {} items older than {} in {} batches, {}",
+                        completed ? "Archived" : "Stopped after archiving", status.getArchivedOrders(),
+                        status.getArchivedItems(), status.cutoff, status.getBatches(), status.getDuration());
+            } catch (RuntimeException e) {
+                status.error = e.getMessage();
+                logger.error("Order archival failed", e);
+            } finally {
+                DbSessionTag.clear();
+                status.finishedAt = Instant.now();
+            }
+        });
+        return Optional.of(status);
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        if (properties.interval().isPositive()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("order-archive-scheduler").daemon().factory());
+            long interval = properties.interval().toMillis();
+            scheduler.scheduleWithFixedDelay(this::startScheduledArchival, interval, interval, TimeUnit.MILLISECONDS);
+            logger.info("Archiving orders older than {} every {}", properties.olderThan(), properties.interval());
+        }
+    }
+
+    @Override
+    public void stop() {
+        // A running batch still commits, the run ends before the next one
+        running = false;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        ArchiveStatus status = current.get();
+        if (status != null) {
+            status.cancelled = true;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // An exception would end the schedule for good
+    private void startScheduledArchival() {
+        try {
+            startArchival();
+        } catch (ArchiveRefusedException e) {
+            logger.warn("Skipping the scheduled order archival: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            logger.warn("Could not start the scheduled order archival", e);
+        }
+    }
+
+    private void checkOrderIdIndexes() {
+        for (int shard = 0; shard < shardRouter.shardCount(); shard++) {
+            boolean indexed = shardRouter.onShard(shard, () -> {
+                try (Connection connection = dataSource.getConnection()) {
+                    return OrderIdIndex.exists(connection);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Could not look up the indexes of order_items", e);
+                }
+            });
+            if (!indexed) {
+                throw new ArchiveRefusedException("order_items has no valid index on order_id"
+                        + (shardRouter.shardCount() > 1 ? " on shard " + shard : "")
+                        + ": every batch would scan it for its items and again per order for the foreign key check, "
+                        + "holding its locks far beyond max-lock-time. Set app.archive.create-order-id-index to build "
+                        + "it, which also changes what the N+1 and join benchmarks measure");
+            }
+        }
+    }
+
+    // True once every order before the cutoff has been looked at, false when the run was cancelled first
+    private boolean archive(ArchiveStatus status, int shard) {
+        status.shard = shard;
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            prepareTables(connection);
+            status.totalOrders.addAndGet(countOrdersBefore(connection, status.cutoff));
+
+            connection.setAutoCommit(false);
+            long budget = properties.maxLockTime().toNanos();
+            long lastId = 0;
+            try (PreparedStatement setLockTimeout = connection.prepareStatement("SELECT set_config('lock_timeout', ?, true)");
+                 PreparedStatement batch = connection.prepareStatement(ARCHIVE_BATCH_SQL)) {
+                setLockTimeout.setString(1, properties.maxLockTime().toMillis() + "ms");
+                while (!status.cancelled) {
+                    waitForReplicas(connection, status);
+                    long startTime = System.nanoTime();
+                    Long batchEnd;
+                    List<Long> userIds = List.of();
+                    try {
+                        setLockTimeout.execute();
+                        batch.setLong(1, lastId);
+                        batch.setObject(2, status.cutoff);
+                        batch.setInt(3, status.batchSize);
+                        try (ResultSet rs = batch.executeQuery()) {
+                            rs.next();
+                            batchEnd = rs.getObject(1, Long.class);
+                            status.orders.addAndGet(rs.getLong(2));
+                            status.items.addAndGet(rs.getLong(3));
+                            archivedOrders.increment(rs.getLong(2));
+                            archivedItems.increment(rs.getLong(3));
+                            Array users = rs.getArray(4);
+                            if (users != null) {
+                                userIds = Arrays.asList((Long[]) users.getArray());
+                            }
+                        }
+                        connection.commit();
+                    } catch (SQLException e) {
+                        connection.rollback();
+                        if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState())) {
+                            throw e;
+                        }
+                        // Items of the batch or one of the tables stayed locked longer than the budget: retry the same
+                        // range later and smaller
+                        lockTimeouts.increment();
+                        status.lockTimeouts.incrementAndGet();
+                        status.batchSize = Math.max(properties.minBatchSize(), status.batchSize / 2);
+                        pause(status);
+                        continue;
+                    }
+                    long elapsed = System.nanoTime() - startTime;
+                    batchTimer.record(elapsed, TimeUnit.NANOSECONDS);
+                    // Cached orders of these users now include archived ones
+                    if (!userIds.isEmpty()) {
+                        eventPublisher.publishEvent(OrdersWrittenEvent.of(userIds));
+                    }
+                    if (batchEnd == null) {
+                        return true;
+                    }
+                    lastId = batchEnd;
+                    status.lastOrderId = batchEnd;
+                    status.batches.incrementAndGet();
+                    if (elapsed > budget) {
+                        status.batchSize = Math.max(properties.minBatchSize(), status.batchSize / 2);
+                    } else if (elapsed < budget / 4) {
+                        status.batchSize = Math.min(Math.max(properties.minBatchSize(), properties.batchSize()), status.batchSize * 2);
+                    }
+                    pause(status);
+                }
+                return false;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not archive the orders of shard " + shard, e);
+        }
+    }
+
+    private void prepareTables(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS orders_archive (LIKE orders INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING INDEXES)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS order_items_archive (LIKE order_items INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING INDEXES)");
+            if (OrderIdIndex.exists(connection)) {
+                return;
+            }
+            if (!properties.createOrderIdIndex()) {
+                // Checked before the run started, dropped since
+                throw new ArchiveRefusedException("The index on order_items.order_id was dropped during the run");
+            }
+            // Without it every batch scans all of order_items, twice: for the items and for the foreign key check
+            logger.info("Creating index idx_order_items_order_id for the archive batches");
+            OrderIdIndex.create(connection);
+        }
+    }
+
+    private static long countOrdersBefore(Connection connection, LocalDateTime cutoff) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT count(*) FROM orders WHERE order_date < ?")) {
+            ps.setObject(1, cutoff);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private void waitForReplicas(Connection connection, ArchiveStatus status) throws SQLException {
+        long maxLag = properties.maxReplicationLag().toBytes();
+        while (!status.cancelled) {
+            long lag;
+            try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(REPLICATION_LAG_SQL)) {
+                rs.next();
+                lag = rs.getLong(1);
+            }
+            connection.commit();
+            if (lag <= maxLag) {
+                return;
+            }
+            logger.debug("Replicas are {} bytes behind, waiting before the next archive batch", lag);
+            pause(status);
+        }
+    }
+
+    private void pause(ArchiveStatus status) {
+        try {
+            Thread.sleep(properties.pause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status.cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.dbtraining.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConfigurationProperties(prefix = "app.export")
+public record OrderExportProperties(
+        // Each export goes to its own sub-directory, named after the export
+        @DefaultValue("export") String directory,
+        // Concurrent COPY streams, each holds a connection from the pool next to the one keeping the snapshot open
+        @DefaultValue("4") int parallelism,
+        // orders ids covered by one file, when order_items has an index on order_id. Without it every range would scan
+        // all of order_items, the whole export is then one range
+        @DefaultValue("100000") long rangeSize,
+        // Build the order_items(order_id) index CONCURRENTLY before the export when it is missing. Off by default since
+        // the missing index is part of what the N+1 and join benchmarks measure
+        @DefaultValue("false") boolean createOrderIdIndex) {
+}
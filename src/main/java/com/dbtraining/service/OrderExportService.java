@@ -0,0 +1,277 @@
+package com.dbtraining.service;
+
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Full export of the order lines (order, item and product columns) to gzipped CSV files, an order without items
+ * gives one line with empty item columns. The orders id space is split into ranges that are streamed with COPY TO
+ * STDOUT on several connections at once, all reading the same exported snapshot. Without an index on
+ * order_items.order_id each range would join against a full scan of order_items, so the export then runs as a single
+ * range. A range is done once its file is renamed from .part, so a failed or interrupted export resumes where it
+ * stopped when started again with the same name.
+ */
+@Service
+public class OrderExportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderExportService.class);
+    private static final String MANIFEST = "manifest.properties";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final String COPY_SQL = """
+            COPY (SELECT o.id AS order_id, o.order_date, o.user_id, oi.id AS item_id, oi.product_id, p.name AS product_name,
+                         p.price, oi.quantity
+                  FROM orders o
+                  LEFT JOIN order_items oi ON oi.order_id = o.id
+                  LEFT JOIN products p ON p.id = oi.product_id
+                  WHERE o.id >= %d AND o.id < %d)
+            TO STDOUT WITH (FORMAT csv, HEADER)
+            """;
+
+    private final DataSource dataSource;
+    private final OrderExportProperties properties;
+    private final AtomicReference<ExportStatus> current = new AtomicReference<>();
+
+    public OrderExportService(DataSource dataSource, OrderExportProperties properties) {
+        this.dataSource = dataSource;
+        this.properties = properties;
+    }
+
+    public record Range(long from, long to) {
+        String fileName() {
+            return "order-lines-%012d-%012d.csv.gz".formatted(from, to);
+        }
+    }
+
+    public static final class ExportStatus {
+        private final String name;
+        private final Path directory;
+        private final Instant startedAt = Instant.now();
+        private final AtomicInteger completedRanges = new AtomicInteger();
+        private final AtomicInteger skippedRanges = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile int totalRanges;
+        private volatile Instant finishedAt;
+        private volatile String error;
+
+        private ExportStatus(String name, Path directory) {
+            this.name = name;
+            this.directory = directory;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDirectory() {
+            return directory.toAbsolutePath().toString();
+        }
+
+        public String getState() {
+            return error != null ? "FAILED" : finishedAt != null ? "COMPLETED" : "RUNNING";
+        }
+
+        public int getTotalRanges() {
+            return totalRanges;
+        }
+
+        public int getCompletedRanges() {
+            return completedRanges.get();
+        }
+
+        // Ranges already exported by an earlier run of the same export
+        public int getSkippedRanges() {
+            return skippedRanges.get();
+        }
+
+        public long getBytesWritten() {
+            return bytes.get();
+        }
+
+        public Duration getDuration() {
+            return Duration.between(startedAt, finishedAt != null ? finishedAt : Instant.now());
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isRunning() {
+            return finishedAt == null;
+        }
+    }
+
+    public ExportStatus status() {
+        return current.get();
+    }
+
+    /**
+     * Starts the export in the background, or returns empty when one is still running.
+     */
+    public Optional<ExportStatus> start(String name) {
+        var status = new ExportStatus(name, Path.of(properties.directory()).resolve(name));
+        ExportStatus previous = current.get();
+        if (previous != null && previous.isRunning() || !current.compareAndSet(previous, status)) {
+            return Optional.empty();
+        }
+        Thread.ofPlatform().name("order-export").start(() -> {
+            try {
+                export(status);
+            } catch (RuntimeException e) {
+                status.error = e.getMessage();
+                logger.error("Order export {} failed", name, e);
+            } finally {
+                status.finishedAt = Instant.now();
+            }
+        });
+        return Optional.of(status);
+    }
+
+    private void export(ExportStatus status) {
+        boolean splitRanges = prepareOrderIdIndex();
+        // The snapshot stays valid as long as this transaction is open
+        try (Connection snapshotHolder = dataSource.getConnection()) {
+            snapshotHolder.setAutoCommit(false);
+            String snapshot;
+            try (Statement stmt = snapshotHolder.createStatement()) {
+                stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+                try (ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()")) {
+                    rs.next();
+                    snapshot = rs.getString(1);
+                }
+            }
+
+            List<Range> ranges = ranges(status.directory, snapshotHolder, splitRanges);
+            status.totalRanges = ranges.size();
+            logger.info("Exporting {} orders ranges to {} with {} streams", ranges.size(),
+                    status.directory.toAbsolutePath(), Math.min(ranges.size(), Math.max(1, properties.parallelism())));
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, properties.parallelism()));
+            try {
+                var futures = ranges.stream()
+                        .map(range -> CompletableFuture.runAsync(() -> exportRange(status, snapshot, range), executor))
+                        .toArray(CompletableFuture[]::new);
+                CompletableFuture.allOf(futures).join();
+            } finally {
+                executor.shutdown();
+            }
+            snapshotHolder.commit();
+            logger.info("Order export {} done: {} ranges written, {} already present, {} MB in {}", status.name,
+                    status.getCompletedRanges(), status.getSkippedRanges(), status.getBytesWritten() / (1024 * 1024),
+                    status.getDuration());
+        } catch (SQLException e) {
+            throw new IllegalStateException("Order export " + status.name + " failed", e);
+        }
+    }
+
+    // Before the snapshot is taken: CREATE INDEX CONCURRENTLY waits for every transaction holding an older snapshot
+    private boolean prepareOrderIdIndex() {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            if (OrderIdIndex.exists(connection)) {
+                return true;
+            }
+            if (!properties.createOrderIdIndex()) {
+                logger.info("order_items has no index on order_id, exporting in one COPY stream. Set "
+                        + "app.export.create-order-id-index to build it and export ranges in parallel");
+                return false;
+            }
+            logger.info("Creating index idx_order_items_order_id for the export ranges");
+            OrderIdIndex.create(connection);
+            return true;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not prepare the order_id index for the export", e);
+        }
+    }
+
+    // Ranges come from the manifest when resuming, so they line up with the files already written
+    private List<Range> ranges(Path directory, Connection connection, boolean split) throws SQLException {
+        try {
+            Files.createDirectories(directory);
+            Path manifestFile = directory.resolve(MANIFEST);
+            var manifest = new Properties();
+            if (Files.exists(manifestFile)) {
+                try (var in = Files.newInputStream(manifestFile)) {
+                    manifest.load(in);
+                }
+            } else {
+                try (Statement stmt = connection.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT coalesce(min(id), 0), coalesce(max(id), 0) FROM orders")) {
+                    rs.next();
+                    long rangeSize = split ? properties.rangeSize() : rs.getLong(2) - rs.getLong(1) + 1;
+                    manifest.setProperty("minId", Long.toString(rs.getLong(1)));
+                    manifest.setProperty("maxId", Long.toString(rs.getLong(2)));
+                    manifest.setProperty("rangeSize", Long.toString(Math.max(1, rangeSize)));
+                }
+                try (var out = Files.newOutputStream(manifestFile)) {
+                    manifest.store(out, "Order lines export, ranges are [from, to) over orders.id");
+                }
+            }
+            long minId = Long.parseLong(manifest.getProperty("minId"));
+            long maxId = Long.parseLong(manifest.getProperty("maxId"));
+            long rangeSize = Long.parseLong(manifest.getProperty("rangeSize"));
+            var ranges = new ArrayList<Range>();
+            for (long from = minId; from <= maxId; from += rangeSize) {
+                ranges.add(new Range(from, Math.min(from + rangeSize, maxId + 1)));
+            }
+            return ranges;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not prepare export directory " + directory, e);
+        }
+    }
+
+    private void exportRange(ExportStatus status, String snapshot, Range range) {
+        Path target = status.directory.resolve(range.fileName());
+        if (Files.exists(target)) {
+            status.skippedRanges.incrementAndGet();
+            return;
+        }
+        Path part = status.directory.resolve(range.fileName() + ".part");
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+                stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+            }
+            try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(part), BUFFER_SIZE), BUFFER_SIZE)) {
+                connection.unwrap(PGConnection.class).getCopyAPI().copyOut(COPY_SQL.formatted(range.from(), range.to()), out);
+            }
+            connection.commit();
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+            status.bytes.addAndGet(Files.size(target));
+            status.completedRanges.incrementAndGet();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not export orders range " + range, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write " + part, e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.dbtraining.service;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The index on order_items.order_id that Hibernate does not create for the foreign key. Jobs that look up items by
+ * order in bulk build it on request, the request paths keep running without it.
+ */
+final class OrderIdIndex {
+
+    private OrderIdIndex() {
+    }
+
+    static boolean exists(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery("""
+                SELECT EXISTS (SELECT 1 FROM pg_index i
+                               JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = i.indkey[0]
+                               WHERE i.indrelid = 'order_items'::regclass AND a.attname = 'order_id' AND i.indisvalid)
+                """)) {
+            rs.next();
+            return rs.getBoolean(1);
+        }
+    }
+
+    // CONCURRENTLY cannot run inside a transaction, the connection has to be in autocommit
+    static void create(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            // A build that failed before leaves an invalid index behind
+            stmt.execute("DROP INDEX CONCURRENTLY IF EXISTS idx_order_items_order_id");
+            stmt.execute("CREATE INDEX CONCURRENTLY idx_order_items_order_id ON order_items (order_id)");
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.dbtraining.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+@ConfigurationProperties(prefix = "app.ingest")
+public record OrderIngestProperties(
+        // Rejected lines listed in the response, further ones are only counted
+        @DefaultValue("100") int maxErrors,
+        // Longer lines are rejected without being parsed, this bounds the memory one upload can take
+        @DefaultValue("1MB") DataSize maxLineLength,
+        @DefaultValue("1000") int maxItemsPerOrder,
+        // Rows are handed to COPY in chunks of about this size
+        @DefaultValue("64KB") DataSize copyBufferSize) {
+}
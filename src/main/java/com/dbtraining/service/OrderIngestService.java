@@ -0,0 +1,432 @@
+package com.dbtraining.service;
+
+import com.dbtraining.sharding.ShardRouter;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Loads client supplied orders from an NDJSON stream. Lines are parsed one at a time and written straight into a
+ * COPY to a staging table, so memory stays the same however large the upload is. Once the body is read, orders with
+ * unknown users or products are set aside and the rest goes into orders and order_items in one statement, all in
+ * the transaction of the COPY. Invalid lines are reported back instead of failing the upload. Each shard commits its
+ * own COPY: a shard that fails does not undo those committed before it, the result lists which shards were loaded.
+ */
+@Service
+public class OrderIngestService {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderIngestService.class);
+
+    // Order rows carry user_id and order_date, item rows product_id and quantity; line is the order's line number
+    private static final String STAGING_TABLE_SQL = """
+            CREATE TEMP TABLE ingest_rows (line bigint, user_id bigint, order_date timestamp, product_id bigint, quantity integer)
+            ON COMMIT DROP
+            """;
+
+    private static final String UNKNOWN_REFERENCES_SQL = """
+            SELECT r.line, CASE WHEN r.user_id IS NOT NULL THEN 'unknown user ' || r.user_id
+                                ELSE 'unknown product ' || r.product_id END
+            FROM ingest_rows r
+            WHERE (r.user_id IS NOT NULL AND NOT EXISTS (SELECT 1 FROM users u WHERE u.id = r.user_id))
+               OR (r.product_id IS NOT NULL AND NOT EXISTS (SELECT 1 FROM products p WHERE p.id = r.product_id))
+            """;
+
+    private static final String INSERT_SQL = """
+            WITH new_orders AS (
+                SELECT line, nextval('order_sequence') AS id, order_date, user_id
+                FROM ingest_rows WHERE user_id IS NOT NULL
+            ), inserted_orders AS (
+                INSERT INTO orders (id, order_date, user_id)
+                SELECT id, order_date, user_id FROM new_orders
+            )
+            INSERT INTO order_items (id, quantity, order_id, product_id)
+            SELECT nextval('order_item_sequence'), i.quantity, o.id, i.product_id
+            FROM ingest_rows i JOIN new_orders o USING (line)
+            WHERE i.product_id IS NOT NULL
+            """;
+
+    private final DataSource dataSource;
+    private final OrderIngestProperties properties;
+    private final ShardRouter shardRouter;
+    private final ApplicationEventPublisher eventPublisher;
+    private final JsonFactory jsonFactory;
+    private final Counter acceptedOrders;
+    private final Counter rejectedLines;
+
+    public OrderIngestService(DataSource dataSource, OrderIngestProperties properties, ShardRouter shardRouter,
+                              ApplicationEventPublisher eventPublisher, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.dataSource = dataSource;
+        this.properties = properties;
+        this.shardRouter = shardRouter;
+        this.eventPublisher = eventPublisher;
+        this.jsonFactory = objectMapper.getFactory();
+        this.acceptedOrders = Counter.builder("app.ingest.orders")
+                .description("Orders loaded through the ingest endpoint")
+                .register(meterRegistry);
+        this.rejectedLines = Counter.builder("app.ingest.rejected")
+                .description("Ingest lines rejected by validation")
+                .register(meterRegistry);
+    }
+
+    public record LineError(long line, String message) {}
+
+    // Shards commit one after the other, those in failedShards did not load their orders when the others did
+    public record IngestResult(long lines, long orders, long items, long rejected, List<LineError> errors,
+                               List<Integer> loadedShards, List<Integer> failedShards, long executionTimeMs) {}
+
+    record Item(long productId, int quantity) {}
+
+    static final class InvalidLineException extends Exception {
+        InvalidLineException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final class Errors {
+        private final List<LineError> listed = new ArrayList<>();
+        private long count;
+
+        void add(long line, String message) {
+            count++;
+            if (listed.size() < properties.maxErrors()) {
+                listed.add(new LineError(line, message));
+            }
+        }
+    }
+
+    // One COPY per shard the upload touches, all committed once the body has been read
+    private final class ShardCopy {
+        private final Connection connection;
+        private final CopyIn copy;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Set<Long> userIds = new HashSet<>();
+        private long orders;
+
+        ShardCopy(Connection connection) throws SQLException {
+            this.connection = connection;
+            try {
+                connection.setAutoCommit(false);
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(STAGING_TABLE_SQL);
+                }
+                this.copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY ingest_rows FROM STDIN");
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        void write(long line, long userId, LocalDateTime orderDate, List<Item> items) throws SQLException {
+            var rows = new StringBuilder(32 + items.size() * 24);
+            rows.append(line).append('\t').append(userId).append('\t').append(orderDate).append("\t\\N\t\\N\n");
+            for (Item item : items) {
+                rows.append(line).append("\t\\N\t\\N\t").append(item.productId()).append('\t').append(item.quantity()).append('\n');
+            }
+            buffer.writeBytes(rows.toString().getBytes(StandardCharsets.UTF_8));
+            if (buffer.size() >= properties.copyBufferSize().toBytes()) {
+                flush();
+            }
+            userIds.add(userId);
+            orders++;
+        }
+
+        private void flush() throws SQLException {
+            copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+            buffer.reset();
+        }
+
+        long finish(Errors errors) throws SQLException {
+            flush();
+            copy.endCopy();
+            try (Statement stmt = connection.createStatement()) {
+                // Reports the first unknown reference of each rejected order
+                long previousLine = -1;
+                try (ResultSet rs = stmt.executeQuery(UNKNOWN_REFERENCES_SQL + " ORDER BY 1")) {
+                    while (rs.next()) {
+                        if (rs.getLong(1) != previousLine) {
+                            previousLine = rs.getLong(1);
+                            errors.add(previousLine, rs.getString(2));
+                            orders--;
+                        }
+                    }
+                }
+                if (previousLine != -1) {
+                    stmt.executeUpdate("DELETE FROM ingest_rows WHERE line IN (SELECT r.line FROM ("
+                            + UNKNOWN_REFERENCES_SQL + ") r)");
+                }
+                long items = stmt.executeUpdate(INSERT_SQL);
+                connection.commit();
+                return items;
+            }
+        }
+
+        void close() {
+            try {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug("Could not close ingest connection", e);
+            }
+        }
+    }
+
+    public IngestResult ingest(InputStream body) throws IOException {
+        long startTime = System.currentTimeMillis();
+        var errors = new Errors();
+        var copies = new TreeMap<Integer, ShardCopy>();
+        var reader = new LineReader(body, (int) properties.maxLineLength().toBytes());
+        var items = new ArrayList<Item>();
+        long lines = 0;
+        long orders = 0;
+        long itemCount = 0;
+        var loadedShards = new ArrayList<Integer>();
+        var failedShards = new ArrayList<Integer>();
+        try {
+            while (reader.next()) {
+                lines++;
+                if (reader.tooLong) {
+                    errors.add(lines, "line longer than " + properties.maxLineLength());
+                    continue;
+                }
+                if (reader.isBlank()) {
+                    continue;
+                }
+                items.clear();
+                try (JsonParser parser = jsonFactory.createParser(reader.line, 0, reader.length)) {
+                    var order = parseOrder(parser, items);
+                    int shard = shardRouter.shardOf(order.userId());
+                    var copy = copies.get(shard);
+                    if (copy == null) {
+                        copy = new ShardCopy(shardRouter.onShard(shard, this::connection));
+                        copies.put(shard, copy);
+                    }
+                    copy.write(lines, order.userId(), order.orderDate(), items);
+                } catch (InvalidLineException e) {
+                    errors.add(lines, e.getMessage());
+                } catch (JsonProcessingException e) {
+                    errors.add(lines, "invalid JSON: " + e.getOriginalMessage());
+                }
+            }
+            for (var entry : copies.entrySet()) {
+                var copy = entry.getValue();
+                try {
+                    itemCount += copy.finish(errors);
+                } catch (SQLException | RuntimeException e) {
+                    // Shards committed before stay loaded, the remaining ones are still tried
+                    failedShards.add(entry.getKey());
+                    logger.error("Could not load the uploaded orders of shard {}, shards {} are loaded", entry.getKey(),
+                            loadedShards, e);
+                    continue;
+                }
+                loadedShards.add(entry.getKey());
+                orders += copy.orders;
+                if (!copy.userIds.isEmpty()) {
+                    eventPublisher.publishEvent(OrdersWrittenEvent.of(copy.userIds));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not load the uploaded orders", e);
+        } finally {
+            copies.values().forEach(ShardCopy::close);
+        }
+
+        acceptedOrders.increment(orders);
+        rejectedLines.increment(errors.count);
+        long executionTime = System.currentTimeMillis() - startTime;
+        logger.info("Ingested {} orders with {} items from {} lines, {} rejected, in {} ms", orders, itemCount, lines,
+                errors.count, executionTime);
+        return new IngestResult(lines, orders, itemCount, errors.count, errors.listed, loadedShards, failedShards,
+                executionTime);
+    }
+
+    private Connection connection() {
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not get a connection for the ingest", e);
+        }
+    }
+
+    record ParsedOrder(long userId, LocalDateTime orderDate) {}
+
+    ParsedOrder parseOrder(JsonParser parser, List<Item> items) throws IOException, InvalidLineException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new InvalidLineException("expected an order object");
+        }
+        Long userId = null;
+        LocalDateTime orderDate = null;
+        boolean hasItems = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "userId" -> userId = positiveLong(parser, value, "userId");
+                case "orderDate" -> {
+                    if (value != JsonToken.VALUE_STRING) {
+                        throw new InvalidLineException("orderDate must be a string");
+                    }
+                    try {
+                        orderDate = LocalDateTime.parse(parser.getText());
+                    } catch (DateTimeParseException e) {
+                        throw new InvalidLineException("orderDate is not an ISO local date-time: " + parser.getText());
+                    }
+                }
+                case "items" -> {
+                    parseItems(parser, value, items);
+                    hasItems = true;
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        if (parser.nextToken() != null) {
+            throw new InvalidLineException("unexpected content after the order object");
+        }
+        if (userId == null) {
+            throw new InvalidLineException("userId is missing");
+        }
+        if (!hasItems || items.isEmpty()) {
+            throw new InvalidLineException("an order needs at least one item");
+        }
+        return new ParsedOrder(userId, orderDate != null ? orderDate : LocalDateTime.now());
+    }
+
+    private void parseItems(JsonParser parser, JsonToken value, List<Item> items) throws IOException, InvalidLineException {
+        if (value != JsonToken.START_ARRAY) {
+            throw new InvalidLineException("items must be an array");
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            if (items.size() == properties.maxItemsPerOrder()) {
+                throw new InvalidLineException("more than " + properties.maxItemsPerOrder() + " items");
+            }
+            Long productId = null;
+            Long quantity = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken fieldValue = parser.nextToken();
+                switch (field) {
+                    case "productId" -> productId = positiveLong(parser, fieldValue, "productId");
+                    case "quantity" -> quantity = positiveLong(parser, fieldValue, "quantity");
+                    default -> parser.skipChildren();
+                }
+            }
+            if (productId == null || quantity == null) {
+                throw new InvalidLineException("item " + (items.size() + 1) + " needs a productId and a quantity");
+            }
+            if (quantity > Integer.MAX_VALUE) {
+                throw new InvalidLineException("quantity " + quantity + " is too large");
+            }
+            items.add(new Item(productId, quantity.intValue()));
+        }
+        if (parser.currentToken() != JsonToken.END_ARRAY) {
+            throw new InvalidLineException("items must contain objects");
+        }
+    }
+
+    private static long positiveLong(JsonParser parser, JsonToken value, String field) throws IOException, InvalidLineException {
+        if (value != JsonToken.VALUE_NUMBER_INT || parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER
+                || parser.getLongValue() <= 0) {
+            throw new InvalidLineException(field + " must be a positive integer");
+        }
+        return parser.getLongValue();
+    }
+
+    /**
+     * Splits the body into lines without decoding it. A line longer than the limit is skipped up to its end and
+     * flagged instead of being kept.
+     */
+    static final class LineReader {
+        private final InputStream in;
+        private final int maxLength;
+        private final byte[] chunk = new byte[64 * 1024];
+        private int position;
+        private int limit;
+        byte[] line = new byte[1024];
+        int length;
+        boolean tooLong;
+
+        LineReader(InputStream in, int maxLength) {
+            this.in = in;
+            this.maxLength = maxLength;
+        }
+
+        boolean next() throws IOException {
+            length = 0;
+            tooLong = false;
+            boolean any = false;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(chunk);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return any;
+                    }
+                }
+                any = true;
+                int start = position;
+                while (position < limit && chunk[position] != '\n') {
+                    position++;
+                }
+                append(start, position - start);
+                if (position < limit) {
+                    position++;
+                    return true;
+                }
+            }
+        }
+
+        private void append(int start, int count) {
+            if (tooLong || count == 0) {
+                return;
+            }
+            if (length + count > maxLength) {
+                tooLong = true;
+                return;
+            }
+            if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.min(maxLength, Math.max(line.length * 2, length + count)));
+            }
+            System.arraycopy(chunk, start, line, length, count);
+            length += count;
+        }
+
+        boolean isBlank() {
+            for (int i = 0; i < length; i++) {
+                if (!Character.isWhitespace(line[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
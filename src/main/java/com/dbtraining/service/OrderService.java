@@ -1,42 +1,145 @@
 package com.dbtraining.service;
 
+import com.dbtraining.journal.OrderJournalService;
 import com.dbtraining.model.Order;
+import com.dbtraining.model.User;
 import com.dbtraining.repository.OrderRepository;
+import com.dbtraining.sharding.ShardRouter;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.LockModeType;
+import org.hibernate.Session;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
+/**
+ * Order writes and reads, routed to the shard of the order's user. The shard has to be picked before the transaction
+ * starts, which is why the transactions are demarcated here rather than with {@code @Transactional}.
+ */
 @Service
 public class OrderService {
     private final OrderRepository orderRepository;
     private final EntityManager entityManager;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ShardRouter shardRouter;
+    private final OrderJournalService orderJournalService;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate readOnlyTransactionTemplate;
 
-    public OrderService(OrderRepository orderRepository, EntityManager entityManager) {
+    public OrderService(OrderRepository orderRepository, EntityManager entityManager, ApplicationEventPublisher eventPublisher,
+                        ShardRouter shardRouter, OrderJournalService orderJournalService,
+                        PlatformTransactionManager transactionManager) {
         this.orderRepository = orderRepository;
         this.entityManager = entityManager;
+        this.eventPublisher = eventPublisher;
+        this.shardRouter = shardRouter;
+        this.orderJournalService = orderJournalService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
     }
 
-    @Transactional
+    /**
+     * Writes the order, or only journals it when the order journal is enabled: it is then written to the database
+     * by the journal replay and the order keeps an empty id.
+     */
     public void insertSingleOrder(Order order) {
-        orderRepository.save(order);
+        if (orderJournalService.enabled()) {
+            orderJournalService.accept(order);
+            return;
+        }
+        shardRouter.onShardOfUser(order.user().id(), () -> transactionTemplate.execute(status -> {
+            orderRepository.save(order);
+            eventPublisher.publishEvent(OrdersWrittenEvent.of(List.of(order.user().id())));
+            return null;
+        }));
     }
 
-    @Transactional
+    /**
+     * Like {@link #insertSingleOrder(Order)} with the order dated now. A journaled order does not lock its user.
+     */
     public void placeOrder(Order order) {
-        // This method acquires a pessimistic write lock on the user
-        // It could lead to performance issues if many orders are being placed concurrently
-        entityManager.lock(order.user(), LockModeType.PESSIMISTIC_WRITE);
-        order.setOrderDate(LocalDateTime.now());
-        orderRepository.save(order);
+        if (orderJournalService.enabled()) {
+            orderJournalService.accept(order.setOrderDate(LocalDateTime.now()));
+            return;
+        }
+        shardRouter.onShardOfUser(order.user().id(), () -> transactionTemplate.execute(status -> {
+            // This method acquires a pessimistic write lock on the user
+            // It could lead to performance issues if many orders are being placed concurrently
+            // Found again rather than locked, the user may come from another persistence context when open-in-view is off
+            entityManager.find(User.class, order.user().id(), LockModeType.PESSIMISTIC_WRITE);
+            order.setOrderDate(LocalDateTime.now());
+            orderRepository.save(order);
+            eventPublisher.publishEvent(OrdersWrittenEvent.of(List.of(order.user().id())));
+            return null;
+        }));
+    }
+
+    /**
+     * Places an order like {@link #placeOrder(Order)}, user lock included, in a single statement: the order is
+     * inserted by a data-modifying CTE whose RETURNING feeds the items, which come in as arrays.
+     *
+     * @return id of the new order
+     * @throws IllegalArgumentException if there is no user with this id, or not one quantity per product
+     */
+    public long placeOrderInOneStatement(long userId, List<Long> productIds, List<Integer> quantities) {
+        // UNNEST pads the shorter array with nulls
+        if (productIds.size() != quantities.size()) {
+            throw new IllegalArgumentException(productIds.size() + " products but " + quantities.size() + " quantities");
+        }
+        return shardRouter.onShardOfUser(userId, () -> transactionTemplate.execute(status -> {
+            var id = entityManager.unwrap(Session.class).doReturningWork(connection -> {
+                var sql = """
+                    WITH locked_user AS (
+                        SELECT id FROM users WHERE id = ? FOR UPDATE
+                    ), new_order AS (
+                        INSERT INTO orders (id, order_date, user_id)
+                        SELECT nextval('order_sequence'), ?, id FROM locked_user
+                        RETURNING id
+                    ), new_items AS (
+                        INSERT INTO order_items (id, quantity, order_id, product_id)
+                        SELECT nextval('order_item_sequence'), i.quantity, o.id, i.product_id
+                        FROM new_order o, UNNEST(?::integer[], ?::bigint[]) AS i(quantity, product_id)
+                    )
+                    SELECT id FROM new_order
+                    """;
+                try (var ps = connection.prepareStatement(sql)) {
+                    ps.setLong(1, userId);
+                    ps.setObject(2, LocalDateTime.now());
+                    ps.setArray(3, connection.createArrayOf("integer", quantities.toArray()));
+                    ps.setArray(4, connection.createArrayOf("bigint", productIds.toArray()));
+                    try (var rs = ps.executeQuery()) {
+                        return rs.next() ? rs.getLong(1) : null;
+                    }
+                }
+            });
+            if (id == null) {
+                throw new IllegalArgumentException("No user with id " + userId);
+            }
+            eventPublisher.publishEvent(OrdersWrittenEvent.of(List.of(userId)));
+            return id;
+        }));
     }
 
-    @Transactional(readOnly = true)
     public List<Order> generateMonthlySalesReport(LocalDateTime startDate, LocalDateTime endDate) {
         // This query might cause lock contention if run concurrently with order placement
-        return orderRepository.findOrdersInDateRange(startDate, endDate);
+        return findOrdersInDateRange(startDate, endDate);
+    }
+
+    /**
+     * Queries every shard in parallel, each in its own read-only transaction, and concatenates the results in shard
+     * order. The orders come back detached.
+     */
+    public List<Order> findOrdersInDateRange(LocalDateTime startDate, LocalDateTime endDate) {
+        return shardRouter.onEachShard(shard -> readOnlyTransactionTemplate.execute(status ->
+                        orderRepository.findOrdersInDateRange(startDate, endDate)))
+                .stream()
+                .flatMap(Collection::stream)
+                .toList();
     }
 }
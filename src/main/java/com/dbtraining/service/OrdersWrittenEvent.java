@@ -0,0 +1,15 @@
+package com.dbtraining.service;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Published inside the transaction that writes orders, with the users the orders belong to.
+ * Listeners that cache per-user results act on it once the transaction has committed.
+ */
+public record OrdersWrittenEvent(Set<Long> userIds) {
+
+    public static OrdersWrittenEvent of(Collection<Long> userIds) {
+        return new OrdersWrittenEvent(Set.copyOf(userIds));
+    }
+}
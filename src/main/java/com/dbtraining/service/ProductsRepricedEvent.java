@@ -0,0 +1,8 @@
+package com.dbtraining.service;
+
+/**
+ * Published inside the transaction that changes product prices. Order totals are computed from the current prices,
+ * so anything caching them acts on it once the transaction has committed.
+ */
+public record ProductsRepricedEvent(int products) {
+}
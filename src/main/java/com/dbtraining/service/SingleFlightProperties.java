@@ -0,0 +1,15 @@
+package com.dbtraining.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.single-flight")
+public record SingleFlightProperties(
+        // Let concurrent reads of the same user share one database load
+        @DefaultValue("true") boolean enabled,
+        // How long a request waits for the load it joined before running its own, as long as it would wait for a
+        // pooled connection by default
+        @DefaultValue("30s") Duration maxWait) {
+}
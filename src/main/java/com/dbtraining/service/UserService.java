@@ -4,8 +4,13 @@ import com.dbtraining.model.Order;
 import com.dbtraining.model.User;
 import com.dbtraining.repository.OrderRepository;
 import com.dbtraining.repository.UserRepository;
+import com.dbtraining.sharding.ShardRouter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManager;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.List;
 
@@ -13,19 +18,56 @@ import java.util.List;
 public class UserService {
     private final UserRepository userRepository;
     private final OrderRepository orderRepository;
+    private final ShardRouter shardRouter;
+    private final EntityManager entityManager;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+    private final SingleFlight<Long, List<Order>> userOrders;
 
-    public UserService(UserRepository userRepository, OrderRepository orderRepository) {
+    public UserService(UserRepository userRepository, OrderRepository orderRepository, ShardRouter shardRouter,
+                       EntityManager entityManager, PlatformTransactionManager transactionManager, SingleFlightProperties singleFlightProperties,
+                       MeterRegistry meterRegistry) {
         this.userRepository = userRepository;
         this.orderRepository = orderRepository;
+        this.shardRouter = shardRouter;
+        this.entityManager = entityManager;
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+        this.userOrders = new SingleFlight<>("user-orders", singleFlightProperties, meterRegistry);
     }
 
-    @Transactional(readOnly = true)
+    /**
+     * Concurrent calls for the same user share one load, so the orders may also be in the hands of other callers:
+     * read them, do not change them. They come back detached with their items, products and user loaded, lazy
+     * associations beyond that throw instead of reaching into the session of whichever request ran the load.
+     */
     public List<Order> getUserOrders(Long userId) {
-        User user = userRepository.findById(userId).orElseThrow(() -> new RuntimeException("User not found"));
-        List<Order> orders = orderRepository.findByUserIdOrderByOrderDateDesc(userId);
-        // N+1 problem: fetching order items for each order
-        orders.forEach(order -> order.items().size());
-        return orders;
+        return userOrders.execute(userId, () -> loadUserOrders(userId));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onOrdersWritten(OrdersWrittenEvent event) {
+        event.userIds().forEach(userOrders::forget);
     }
-}
 
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onProductsRepriced(ProductsRepricedEvent event) {
+        userOrders.forgetAll();
+    }
+
+    private List<Order> loadUserOrders(Long userId) {
+        // Users are replicated to every shard, their orders only live on the shard of the user
+        return shardRouter.onShardOfUser(userId, () -> readOnlyTransactionTemplate.execute(status -> {
+            User user = userRepository.findById(userId).orElseThrow(() -> new RuntimeException("User not found"));
+            List<Order> orders = orderRepository.findByUserIdOrderByOrderDateDesc(userId);
+            // N+1 problem: fetching order items for each order
+            orders.forEach(order -> order.items().size());
+            // Waiting callers run on other threads, possibly while the leader's request keeps using its session
+            orders.forEach(order -> {
+                entityManager.detach(order);
+                order.items().forEach(item -> entityManager.detach(item.product()));
+            });
+            entityManager.detach(user);
+            return orders;
+        }));
+    }
+}
@@ -0,0 +1,303 @@
+package com.dbtraining.sharding;
+
+import com.dbtraining.init.BulkLoadSchemaManager;
+import com.dbtraining.init.BulkLoadSchemaManager.IndexObject;
+import com.dbtraining.init.BulkLoadSchemaManager.SchemaObject;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prepares the shards after the data loader: creates the schema of shard 0 on the other shards, copies users and
+ * products to them as reference data, moves every order with its items to the shard of its user and gives each shard
+ * its own range of order and item ids. Each step is a no-op when there is nothing to do, so it runs on every start.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class ShardInitializer implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardInitializer.class);
+
+    private static final String[] REFERENCE_TABLES = {"users", "products"};
+    private static final String[] SHARDED_SEQUENCES = {"order_sequence", "order_item_sequence"};
+    // Shard k draws ids from k * ID_RANGE on, shard 0 keeps the ids the data loader started with
+    static final long ID_RANGE = 1_000_000_000_000L;
+
+    private final DataSource dataSource;
+    private final ShardingProperties properties;
+    private final boolean openInView;
+
+    public ShardInitializer(DataSource dataSource, ShardingProperties properties,
+                            @Value("${spring.jpa.open-in-view:true}") boolean openInView) {
+        this.dataSource = dataSource;
+        this.properties = properties;
+        this.openInView = openInView;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws SQLException {
+        if (!properties.enabled()) {
+            return;
+        }
+        if (openInView) {
+            // The request's EntityManager takes its connection before any routing happens, from shard 0
+            logger.warn("spring.jpa.open-in-view is enabled, requests will not be routed to their shard");
+        }
+        var shards = dataSource.unwrap(ShardRoutingDataSource.class);
+        long startTime = System.currentTimeMillis();
+        for (int shard = 1; shard < shards.shardCount(); shard++) {
+            createSchema(shards, shard);
+            copyReferenceData(shards, shard);
+        }
+        for (int source = 0; source < shards.shardCount(); source++) {
+            rebalance(shards, source);
+        }
+        for (int shard = 1; shard < shards.shardCount(); shard++) {
+            separateIds(shards, shard);
+        }
+        logger.info("{} shards ready in {} ms", shards.shardCount(), System.currentTimeMillis() - startTime);
+    }
+
+    private void createSchema(ShardRoutingDataSource shards, int shard) throws SQLException {
+        try (Connection primary = shards.shard(0).getConnection(); Connection target = shards.shard(shard).getConnection()) {
+            if (tableExists(target, "orders")) {
+                return;
+            }
+            var statements = new ArrayList<String>();
+            statements.addAll(sequenceDefinitions(primary));
+            statements.addAll(tableDefinitions(primary));
+            var captured = BulkLoadSchemaManager.capture(primary);
+            captured.keys().stream().map(SchemaObject::createSql).forEach(statements::add);
+            captured.indexes().stream().map(IndexObject::definition).forEach(statements::add);
+            captured.foreignKeys().stream().map(SchemaObject::createSql).forEach(statements::add);
+
+            target.setAutoCommit(false);
+            try (Statement stmt = target.createStatement()) {
+                for (String sql : statements) {
+                    stmt.execute(sql);
+                }
+            }
+            target.commit();
+            logger.info("Created schema on shard {} ({} statements)", shard, statements.size());
+        }
+    }
+
+    private void copyReferenceData(ShardRoutingDataSource shards, int shard) throws SQLException {
+        try (Connection primary = shards.shard(0).getConnection(); Connection target = shards.shard(shard).getConnection()) {
+            boolean usersUpToDate = fingerprint(primary, "users").equals(fingerprint(target, "users"));
+            boolean productsUpToDate = fingerprint(primary, "products").equals(fingerprint(target, "products"));
+            if (usersUpToDate && productsUpToDate) {
+                return;
+            }
+            target.setAutoCommit(false);
+            if (usersUpToDate) {
+                // Same users, so only prices or names changed on shard 0 without reaching this shard: keep the orders
+                try (Statement stmt = target.createStatement()) {
+                    stmt.execute("CREATE TEMP TABLE synced_products (LIKE products) ON COMMIT DROP");
+                }
+                copy(primary, "COPY products TO STDOUT (FORMAT binary)",
+                        target, "COPY synced_products FROM STDIN (FORMAT binary)");
+                try (Statement stmt = target.createStatement()) {
+                    int rows = stmt.executeUpdate("""
+                            INSERT INTO products AS p SELECT * FROM synced_products
+                            ON CONFLICT (id) DO UPDATE SET name = excluded.name, price = excluded.price
+                            WHERE (p.name, p.price) IS DISTINCT FROM (excluded.name, excluded.price)
+                            """);
+                    target.commit();
+                    logger.info("Synchronized {} products to shard {}", rows, shard);
+                }
+                return;
+            }
+            // Different users mean shard 0 was regenerated, so the orders on this shard are stale too
+            try (Statement stmt = target.createStatement()) {
+                stmt.execute("TRUNCATE TABLE order_items, orders, products, users");
+            }
+            long rows = 0;
+            for (String table : REFERENCE_TABLES) {
+                rows += copy(primary, "COPY " + table + " TO STDOUT (FORMAT binary)",
+                        target, "COPY " + table + " FROM STDIN (FORMAT binary)");
+            }
+            target.commit();
+            logger.info("Copied {} users and products to shard {}", rows, shard);
+        }
+    }
+
+    /**
+     * Moves the orders of shard {@code source} that belong to another shard over there. The target inserts through
+     * a staging table and skips ids it already has, so a move interrupted before the delete on the source is simply
+     * repeated on the next start.
+     */
+    private void rebalance(ShardRoutingDataSource shards, int source) throws SQLException {
+        int shardCount = shards.shardCount();
+        try (Connection from = shards.shard(source).getConnection()) {
+            try (PreparedStatement ps = from.prepareStatement("SELECT EXISTS (SELECT 1 FROM orders WHERE user_id % ? <> ?)")) {
+                ps.setInt(1, shardCount);
+                ps.setInt(2, source);
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    if (!rs.getBoolean(1)) {
+                        return;
+                    }
+                }
+            }
+            for (int target = 0; target < shardCount; target++) {
+                if (target == source) {
+                    continue;
+                }
+                String belongsToTarget = "user_id % " + shardCount + " = " + target;
+                long startTime = System.currentTimeMillis();
+                long orders;
+                long items;
+                try (Connection to = shards.shard(target).getConnection()) {
+                    to.setAutoCommit(false);
+                    try (Statement stmt = to.createStatement()) {
+                        stmt.execute("CREATE TEMP TABLE moved_orders (LIKE orders) ON COMMIT DROP");
+                        stmt.execute("CREATE TEMP TABLE moved_order_items (LIKE order_items) ON COMMIT DROP");
+                    }
+                    copy(from, "COPY (SELECT * FROM orders WHERE " + belongsToTarget + ") TO STDOUT (FORMAT binary)",
+                            to, "COPY moved_orders FROM STDIN (FORMAT binary)");
+                    copy(from, """
+                                    COPY (SELECT oi.* FROM order_items oi JOIN orders o ON o.id = oi.order_id
+                                          WHERE o.%s) TO STDOUT (FORMAT binary)
+                                    """.formatted(belongsToTarget),
+                            to, "COPY moved_order_items FROM STDIN (FORMAT binary)");
+                    try (Statement stmt = to.createStatement()) {
+                        stmt.executeUpdate("INSERT INTO orders SELECT * FROM moved_orders ON CONFLICT (id) DO NOTHING");
+                        stmt.executeUpdate("INSERT INTO order_items SELECT * FROM moved_order_items ON CONFLICT (id) DO NOTHING");
+                    }
+                    to.commit();
+                }
+
+                from.setAutoCommit(false);
+                // order_items.order_id has no index, checking the foreign key per deleted order would scan the items
+                // every time, while adding it back validates all of them in one join
+                var referencingOrders = foreignKeysReferencing(from, "orders");
+                try (Statement stmt = from.createStatement()) {
+                    for (SchemaObject fk : referencingOrders) {
+                        stmt.execute("ALTER TABLE " + fk.table() + " DROP CONSTRAINT " + fk.name());
+                    }
+                    items = stmt.executeUpdate("DELETE FROM order_items oi USING orders o WHERE o.id = oi.order_id AND o." + belongsToTarget);
+                    orders = stmt.executeUpdate("DELETE FROM orders WHERE " + belongsToTarget);
+                    for (SchemaObject fk : referencingOrders) {
+                        stmt.execute(fk.createSql());
+                    }
+                }
+                from.commit();
+                from.setAutoCommit(true);
+                logger.info("Moved {} orders and {} items from shard {} to shard {} in {} ms",
+                        orders, items, source, target, System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+
+    private void separateIds(ShardRoutingDataSource shards, int shard) throws SQLException {
+        try (Connection connection = shards.shard(shard).getConnection(); Statement stmt = connection.createStatement()) {
+            for (String sequence : SHARDED_SEQUENCES) {
+                // The third argument makes the next nextval() return exactly shard * ID_RANGE
+                stmt.execute("SELECT setval('%s', %d, false) FROM %s WHERE last_value < %d"
+                        .formatted(sequence, shard * ID_RANGE, sequence, shard * ID_RANGE));
+            }
+        }
+    }
+
+    private static List<String> sequenceDefinitions(Connection connection) throws SQLException {
+        var statements = new ArrayList<String>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT sequencename, increment_by FROM pg_sequences WHERE schemaname = 'public'")) {
+            while (rs.next()) {
+                statements.add("CREATE SEQUENCE IF NOT EXISTS " + rs.getString(1) + " INCREMENT BY " + rs.getLong(2));
+            }
+        }
+        return statements;
+    }
+
+    private static List<String> tableDefinitions(Connection connection) throws SQLException {
+        var statements = new ArrayList<String>();
+        String columnsSql = """
+                    SELECT string_agg(quote_ident(a.attname) || ' ' || format_type(a.atttypid, a.atttypmod)
+                                      || CASE WHEN a.attnotnull THEN ' NOT NULL' ELSE '' END, ', ' ORDER BY a.attnum)
+                    FROM pg_attribute a
+                    WHERE a.attrelid = ?::regclass AND a.attnum > 0 AND NOT a.attisdropped
+                """;
+        try (PreparedStatement ps = connection.prepareStatement(columnsSql)) {
+            for (String table : BulkLoadSchemaManager.TABLES) {
+                ps.setString(1, table);
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    statements.add("CREATE TABLE " + table + " (" + rs.getString(1) + ")");
+                }
+            }
+        }
+        return statements;
+    }
+
+    private static List<SchemaObject> foreignKeysReferencing(Connection connection, String table) throws SQLException {
+        var foreignKeys = new ArrayList<SchemaObject>();
+        String sql = """
+                    SELECT conrelid::regclass::text, conname, pg_get_constraintdef(oid)
+                    FROM pg_constraint
+                    WHERE confrelid = ?::regclass AND contype = 'f'
+                """;
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    foreignKeys.add(new SchemaObject(rs.getString(1), rs.getString(2), rs.getString(3)));
+                }
+            }
+        }
+        return foreignKeys;
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getBoolean(1);
+            }
+        }
+    }
+
+    private static String fingerprint(Connection connection, String table) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT count(*), coalesce(max(id), 0), coalesce(sum(hashtext(t::text)), 0) FROM " + table + " t")) {
+            rs.next();
+            return rs.getLong(1) + "/" + rs.getLong(2) + "/" + rs.getLong(3);
+        }
+    }
+
+    private static long copy(Connection from, String copyOut, Connection to, String copyIn) throws SQLException {
+        var out = from.unwrap(PGConnection.class).getCopyAPI().copyOut(copyOut);
+        var in = to.unwrap(PGConnection.class).getCopyAPI().copyIn(copyIn);
+        try {
+            byte[] chunk;
+            while ((chunk = out.readFromCopy()) != null) {
+                in.writeToCopy(chunk, 0, chunk.length);
+            }
+            return in.endCopy();
+        } finally {
+            if (out.isActive()) {
+                out.cancelCopy();
+            }
+            if (in.isActive()) {
+                in.cancelCopy();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.dbtraining.sharding;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Picks the shard of a user (user_id modulo the number of shards) and binds it to the current thread, so that
+ * {@link ShardRoutingDataSource} hands out connections of that shard. The shard has to be chosen before a
+ * transaction starts, the transaction keeps its connection until it ends.
+ */
+@Component
+public class ShardRouter {
+
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    private final int shardCount;
+    private final AsyncTaskExecutor taskExecutor;
+
+    public ShardRouter(ShardingProperties properties,
+                       @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME) AsyncTaskExecutor taskExecutor) {
+        this.shardCount = properties.enabled() ? 1 + properties.shards().size() : 1;
+        this.taskExecutor = taskExecutor;
+    }
+
+    static int currentShard() {
+        Integer shard = CURRENT.get();
+        return shard == null ? 0 : shard;
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    public int shardOf(long userId) {
+        return (int) Math.floorMod(userId, (long) shardCount);
+    }
+
+    public <T> T onShard(int shard, Supplier<T> action) {
+        if (shard != currentShard() && TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("Cannot switch to shard " + shard + " inside a transaction on shard " + currentShard());
+        }
+        Integer previous = CURRENT.get();
+        CURRENT.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    public <T> T onShardOfUser(long userId, Supplier<T> action) {
+        return onShard(shardOf(userId), action);
+    }
+
+    public <T> List<T> onEachShard(IntFunction<T> action) {
+        return onShards(IntStream.range(0, shardCount).boxed().toList(), action);
+    }
+
+    /**
+     * Runs the action for each shard, in parallel when there is more than one, and returns the results in shard order.
+     */
+    public <T> List<T> onShards(Collection<Integer> shards, IntFunction<T> action) {
+        if (shards.size() == 1) {
+            int shard = shards.iterator().next();
+            return Collections.singletonList(onShard(shard, () -> action.apply(shard)));
+        }
+        var futures = shards.stream()
+                .map(shard -> CompletableFuture.supplyAsync(() -> onShard(shard, () -> action.apply(shard)), taskExecutor))
+                .toList();
+        var results = new ArrayList<T>(futures.size());
+        try {
+            for (var future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,56 @@
+package com.dbtraining.sharding;
+
+import com.dbtraining.latency.LatencyProxies;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+
+/**
+ * Replaces the application DataSource by a {@link ShardRoutingDataSource} over it and one Hikari pool per configured
+ * shard. Runs before the monitoring wrappers, so statement statistics and session tags cover every shard.
+ */
+@Component
+public class ShardingDataSourcePostProcessor implements BeanPostProcessor, Ordered {
+
+    private final ObjectProvider<ShardingProperties> properties;
+    private final ObjectProvider<LatencyProxies> latencyProxies;
+
+    public ShardingDataSourcePostProcessor(ObjectProvider<ShardingProperties> properties,
+                                           ObjectProvider<LatencyProxies> latencyProxies) {
+        this.properties = properties;
+        this.latencyProxies = latencyProxies;
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof HikariDataSource primary) || !properties.getObject().enabled()) {
+            return bean;
+        }
+        var shards = new ArrayList<DataSource>();
+        shards.add(primary);
+        var configured = properties.getObject().shards();
+        for (int i = 0; i < configured.size(); i++) {
+            var shard = configured.get(i);
+            var config = new HikariConfig();
+            primary.copyStateTo(config);
+            config.setPoolName("shard-" + (i + 1));
+            config.setJdbcUrl(latencyProxies.getObject().route(shard.url()));
+            config.setUsername(shard.username());
+            config.setPassword(shard.password());
+            config.setMaximumPoolSize(shard.maximumPoolSize());
+            shards.add(new HikariDataSource(config));
+        }
+        return new ShardRoutingDataSource(shards);
+    }
+}
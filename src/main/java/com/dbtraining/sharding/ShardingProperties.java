@@ -0,0 +1,20 @@
+package com.dbtraining.sharding;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.util.List;
+
+@ConfigurationProperties(prefix = "app.sharding")
+public record ShardingProperties(
+        // Spread orders and order_items over spring.datasource (shard 0) and the shards below by user_id
+        @DefaultValue("false") boolean enabled,
+        @DefaultValue List<Shard> shards) {
+
+    public record Shard(
+            String url,
+            String username,
+            String password,
+            @DefaultValue("10") int maximumPoolSize) {
+    }
+}
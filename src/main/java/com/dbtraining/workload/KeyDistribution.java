@@ -0,0 +1,103 @@
+package com.dbtraining.workload;
+
+import com.dbtraining.workload.WorkloadProperties.Keys;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Picks an index in [0, size). Skewed distributions rank the keys by popularity and scatter the ranks over the
+ * index space with a seeded permutation, so hot keys are spread over the table instead of being its first rows.
+ */
+abstract sealed class KeyDistribution {
+
+    final int size;
+
+    private KeyDistribution(int size) {
+        this.size = size;
+    }
+
+    abstract int next(RandomGenerator random);
+
+    static KeyDistribution of(Keys keys, int size, long seed) {
+        if (size <= 0) {
+            throw new IllegalStateException("Cannot pick from an empty key space");
+        }
+        return switch (keys.distribution()) {
+            case UNIFORM -> new Uniform(size);
+            case ZIPF -> new Zipf(size, keys.exponent(), permutation(size, seed));
+            case HOTSPOT -> new Hotspot(size, keys.hotFraction(), keys.hotProbability(), permutation(size, seed));
+        };
+    }
+
+    private static int[] permutation(int size, long seed) {
+        int[] ranks = new int[size];
+        Arrays.setAll(ranks, i -> i);
+        var random = new SplittableRandom(seed);
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int rank = ranks[i];
+            ranks[i] = ranks[j];
+            ranks[j] = rank;
+        }
+        return ranks;
+    }
+
+    static final class Uniform extends KeyDistribution {
+        Uniform(int size) {
+            super(size);
+        }
+
+        @Override
+        int next(RandomGenerator random) {
+            return random.nextInt(size);
+        }
+    }
+
+    static final class Zipf extends KeyDistribution {
+        private final double[] cumulative;
+        private final int[] keyByRank;
+
+        Zipf(int size, double exponent, int[] keyByRank) {
+            super(size);
+            this.keyByRank = keyByRank;
+            this.cumulative = new double[size];
+            double sum = 0;
+            for (int rank = 0; rank < size; rank++) {
+                sum += 1 / Math.pow(rank + 1, exponent);
+                cumulative[rank] = sum;
+            }
+            for (int rank = 0; rank < size; rank++) {
+                cumulative[rank] /= sum;
+            }
+        }
+
+        @Override
+        int next(RandomGenerator random) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+            return keyByRank[Math.min(size - 1, rank < 0 ? -rank - 1 : rank)];
+        }
+    }
+
+    static final class Hotspot extends KeyDistribution {
+        private final int hotKeys;
+        private final double hotProbability;
+        private final int[] keyByRank;
+
+        Hotspot(int size, double hotFraction, double hotProbability, int[] keyByRank) {
+            super(size);
+            this.hotKeys = (int) Math.max(1, Math.min(size, Math.round(size * hotFraction)));
+            this.hotProbability = hotProbability;
+            this.keyByRank = keyByRank;
+        }
+
+        @Override
+        int next(RandomGenerator random) {
+            int rank = hotKeys == size || random.nextDouble() < hotProbability
+                    ? random.nextInt(hotKeys)
+                    : hotKeys + random.nextInt(size - hotKeys);
+            return keyByRank[rank];
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.dbtraining.workload;
+
+import com.dbtraining.workload.WorkloadProperties.Dates;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Order dates over the last days before a fixed point in time, either evenly or with seasonal and weekend peaks.
+ */
+public final class OrderDateDistribution {
+
+    private final LocalDateTime now;
+    private final int days;
+    // Null for the uniform distribution
+    private final double[] cumulative;
+
+    OrderDateDistribution(Dates dates, LocalDateTime now) {
+        this.now = now;
+        this.days = Math.max(1, dates.days());
+        this.cumulative = switch (dates.distribution()) {
+            case UNIFORM -> null;
+            case SEASONAL -> seasonalWeights(dates, now, days);
+        };
+    }
+
+    public LocalDateTime next(RandomGenerator random) {
+        if (cumulative == null) {
+            return now.minusDays(random.nextInt(days));
+        }
+        int daysAgo = Arrays.binarySearch(cumulative, random.nextDouble());
+        return now.minusDays(Math.min(days - 1, daysAgo < 0 ? -daysAgo - 1 : daysAgo));
+    }
+
+    private static double[] seasonalWeights(Dates dates, LocalDateTime now, int days) {
+        double[] cumulative = new double[days];
+        double sum = 0;
+        for (int daysAgo = 0; daysAgo < days; daysAgo++) {
+            var day = now.minusDays(daysAgo);
+            double weight = dates.peakMonths().contains(day.getMonthValue()) ? dates.peakWeight() : 1;
+            if (day.getDayOfWeek() == DayOfWeek.SATURDAY || day.getDayOfWeek() == DayOfWeek.SUNDAY) {
+                weight *= dates.weekendWeight();
+            }
+            sum += weight;
+            cumulative[daysAgo] = sum;
+        }
+        for (int daysAgo = 0; daysAgo < days; daysAgo++) {
+            cumulative[daysAgo] /= sum;
+        }
+        return cumulative;
+    }
+}
@@ -0,0 +1,89 @@
+package com.dbtraining.workload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Random picks shared by the DataLoader and the bulk insert strategies, following the distributions configured under
+ * app.workload. Both draw from the same seeded ranking, so the users and products that are hot in the generated data
+ * are also the ones the benchmarks keep hitting.
+ */
+@Component
+public class Workload {
+
+    private static final Logger logger = LoggerFactory.getLogger(Workload.class);
+
+    private final WorkloadProperties properties;
+    private final AtomicReference<KeyDistribution> users = new AtomicReference<>();
+    private final AtomicReference<KeyDistribution> products = new AtomicReference<>();
+
+    public Workload(WorkloadProperties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * @return index of the user placing an order, among {@code userCount} users
+     */
+    public int userIndex(int userCount) {
+        return distribution(users, properties.users(), userCount, "users").next(ThreadLocalRandom.current());
+    }
+
+    /**
+     * @return index of the product of an order item, among {@code productCount} products
+     */
+    public int productIndex(int productCount) {
+        return distribution(products, properties.products(), productCount, "products").next(ThreadLocalRandom.current());
+    }
+
+    public OrderDateDistribution orderDates(LocalDateTime now) {
+        return new OrderDateDistribution(properties.orderDates(), now);
+    }
+
+    /**
+     * @return number of items of an order, {@code requested} or on average {@code requested} depending on app.workload.order-size
+     */
+    public int itemCount(int requested) {
+        return switch (properties.orderSize().distribution()) {
+            case FIXED -> requested;
+            // At least one item, requested on average
+            case POISSON -> requested <= 1 ? requested
+                    : Math.min(properties.orderSize().max(), 1 + poisson(requested - 1));
+        };
+    }
+
+    public boolean fixedOrderSize() {
+        return properties.orderSize().distribution() == WorkloadProperties.OrderSizeType.FIXED;
+    }
+
+    private KeyDistribution distribution(AtomicReference<KeyDistribution> current, WorkloadProperties.Keys keys,
+                                         int size, String name) {
+        KeyDistribution distribution = current.get();
+        if (distribution == null || distribution.size != size) {
+            distribution = KeyDistribution.of(keys, size, properties.seed());
+            current.set(distribution);
+            logger.info("Picking {} from {} keys with a {} distribution", name, size, keys.distribution());
+        }
+        return distribution;
+    }
+
+    private static int poisson(double mean) {
+        var random = ThreadLocalRandom.current();
+        if (mean > 30) {
+            return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        }
+        // Knuth: multiply uniforms until the product drops below e^-mean
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int count = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,52 @@
+package com.dbtraining.workload;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.util.List;
+
+@ConfigurationProperties(prefix = "app.workload")
+public record WorkloadProperties(
+        // Which users place the orders, in the DataLoader and the bulk insert strategies
+        @DefaultValue Keys users,
+        // Which products end up in the order items
+        @DefaultValue Keys products,
+        // When the orders generated by the DataLoader were placed
+        @DefaultValue Dates orderDates,
+        // How many items an order gets
+        @DefaultValue OrderSize orderSize,
+        // Decides which keys are the hot ones, the same seed keeps the same hot users and products across runs
+        @DefaultValue("42") long seed) {
+
+    public enum KeyDistributionType {UNIFORM, ZIPF, HOTSPOT}
+
+    public enum DateDistributionType {UNIFORM, SEASONAL}
+
+    public enum OrderSizeType {FIXED, POISSON}
+
+    public record Keys(
+            @DefaultValue("uniform") KeyDistributionType distribution,
+            // zipf: the k-th most popular key is picked with a probability proportional to 1 / k^exponent
+            @DefaultValue("1.0") double exponent,
+            // hotspot: share of the keys that are hot, and share of the picks that go to them
+            @DefaultValue("0.01") double hotFraction,
+            @DefaultValue("0.8") double hotProbability) {
+    }
+
+    public record Dates(
+            @DefaultValue("uniform") DateDistributionType distribution,
+            // Orders are spread over this many days before now
+            @DefaultValue("365") int days,
+            // seasonal: months getting peakWeight times more orders, weekends getting weekendWeight times more
+            @DefaultValue({"11", "12"}) List<Integer> peakMonths,
+            @DefaultValue("3.0") double peakWeight,
+            @DefaultValue("1.5") double weekendWeight) {
+    }
+
+    public record OrderSize(
+            // fixed: every order gets the requested number of items, the DataLoader spreads its items over random
+            // orders instead; poisson: the requested number on average, at least one
+            @DefaultValue("fixed") OrderSizeType distribution,
+            @DefaultValue("50") int max) {
+    }
+}
@@ -0,0 +1,65 @@
+package com.dbtraining.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.LongToIntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OrderJournalServiceTest {
+
+    private static final LongToIntFunction SHARD_OF = userId -> (int) (userId % 2);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumesEachShardAfterItsOwnCheckpoint() throws Exception {
+        var journal = new OrderJournal(directory, 4096, 1 << 20, 2, 0, 0);
+        // Order n belongs to user n, even users live on shard 0 and odd ones on shard 1
+        for (long userId = 1; userId <= 10; userId++) {
+            journal.append(userId, LocalDateTime.now(), new long[]{1}, new int[]{1});
+        }
+        long[] checkpoints = {3, 7};
+
+        // Opened the way the service does after a restart: reading from the lowest checkpoint
+        var reopened = new OrderJournal(directory, 4096, 1 << 20, 2, 3, 7);
+        List<JournaledOrder> batch = reopened.read(100, 0);
+
+        assertThat(sequences(batch)).containsExactly(4L, 5L, 6L, 7L, 8L, 9L, 10L);
+        assertThat(sequences(OrderJournalService.pending(batch, 0, checkpoints[0], SHARD_OF))).containsExactly(4L, 6L, 8L, 10L);
+        assertThat(sequences(OrderJournalService.pending(batch, 1, checkpoints[1], SHARD_OF))).containsExactly(9L);
+    }
+
+    @Test
+    void skipsABatchAShardHasAlreadyCommitted() throws Exception {
+        var journal = new OrderJournal(directory, 4096, 1 << 20, 2, 0, 0);
+        for (long userId = 1; userId <= 4; userId++) {
+            journal.append(userId, LocalDateTime.now(), new long[]{1}, new int[]{1});
+        }
+        List<JournaledOrder> batch = journal.read(100, 0);
+
+        // A retried batch after shard 1 committed it and shard 0 failed
+        assertThat(sequences(OrderJournalService.pending(batch, 0, 0, SHARD_OF))).containsExactly(2L, 4L);
+        assertThat(OrderJournalService.pending(batch, 1, 4, SHARD_OF)).isEmpty();
+    }
+
+    @Test
+    void startsNumberingAfterTheHighestCheckpoint() throws Exception {
+        // The journal directory was lost while the shards had replayed up to 5 and 9
+        var journal = new OrderJournal(directory, 4096, 1 << 20, 2, 5, 9);
+
+        assertThat(journal.read(100, 0)).isEmpty();
+        assertThat(journal.append(2, LocalDateTime.now(), new long[]{1}, new int[]{1})).isEqualTo(10);
+        List<JournaledOrder> batch = journal.read(100, 0);
+        assertThat(sequences(OrderJournalService.pending(batch, 0, 5, SHARD_OF))).containsExactly(10L);
+    }
+
+    private static List<Long> sequences(List<JournaledOrder> orders) {
+        return orders.stream().map(JournaledOrder::sequence).toList();
+    }
+}
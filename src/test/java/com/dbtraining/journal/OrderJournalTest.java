@@ -0,0 +1,225 @@
+package com.dbtraining.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OrderJournalTest {
+
+    // Header, fixed body and one item, so a segment of SEGMENT bytes holds exactly four single-item orders
+    private static final int RECORD = 8 + 36 + 12;
+    private static final int SEGMENT = 4 * RECORD;
+    private static final LocalDateTime ORDER_DATE = LocalDateTime.of(2024, 3, 1, 10, 15, 30, 123_456_000);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatWasAppended() throws Exception {
+        var journal = open(4096, 0, 0);
+
+        assertThat(journal.append(7, ORDER_DATE, new long[]{3, 4}, new int[]{2, 1})).isEqualTo(1);
+        assertThat(journal.append(8, ORDER_DATE.plusDays(1), new long[]{5}, new int[]{9})).isEqualTo(2);
+
+        List<JournaledOrder> orders = journal.read(10, 0);
+        assertThat(orders).hasSize(2);
+        assertThat(orders.get(0).sequence()).isEqualTo(1);
+        assertThat(orders.get(0).userId()).isEqualTo(7);
+        assertThat(orders.get(0).orderDate()).isEqualTo(ORDER_DATE);
+        assertThat(orders.get(0).productIds()).containsExactly(3, 4);
+        assertThat(orders.get(0).quantities()).containsExactly(2, 1);
+        assertThat(orders.get(0).acceptedAtMillis()).isPositive();
+        assertThat(orders.get(1).sequence()).isEqualTo(2);
+        assertThat(orders.get(1).userId()).isEqualTo(8);
+        assertThat(orders.get(1).orderDate()).isEqualTo(ORDER_DATE.plusDays(1));
+        assertThat(orders.get(1).productIds()).containsExactly(5);
+        assertThat(orders.get(1).quantities()).containsExactly(9);
+        assertThat(journal.read(10, 0)).isEmpty();
+    }
+
+    @Test
+    void readsInBatchesAcrossSegments() throws Exception {
+        var journal = open(SEGMENT, 0, 0);
+        appendOrders(journal, 10);
+
+        assertThat(segmentFiles()).containsExactly(name(1), name(5), name(9));
+        assertThat(sequences(journal.read(3, 0))).containsExactly(1L, 2L, 3L);
+        assertThat(sequences(journal.read(100, 0))).containsExactly(4L, 5L, 6L, 7L, 8L, 9L, 10L);
+    }
+
+    @Test
+    void resumesAfterTheReplayedSequence() throws Exception {
+        appendOrders(open(SEGMENT, 0, 0), 10);
+
+        var journal = open(SEGMENT, 6, 6);
+
+        assertThat(journal.appendedSequence()).isEqualTo(10);
+        assertThat(sequences(journal.read(100, 0))).containsExactly(7L, 8L, 9L, 10L);
+        assertThat(journal.append(11, ORDER_DATE, new long[]{1}, new int[]{1})).isEqualTo(11);
+    }
+
+    @Test
+    void stopsRecoveryAtATornRecord() throws Exception {
+        appendOrders(open(SEGMENT, 0, 0), 3);
+        corrupt(name(1), 2 * RECORD + 30);
+
+        var journal = open(SEGMENT, 0, 0);
+
+        assertThat(journal.appendedSequence()).isEqualTo(2);
+        assertThat(journal.append(42, ORDER_DATE, new long[]{1}, new int[]{1})).isEqualTo(3);
+        List<JournaledOrder> orders = journal.read(100, 0);
+        assertThat(sequences(orders)).containsExactly(1L, 2L, 3L);
+        assertThat(orders.get(2).userId()).isEqualTo(42);
+    }
+
+    @Test
+    void ignoresOlderRecordsLeftInAReusedSpare() throws Exception {
+        var journal = open(SEGMENT, 0, 0);
+        appendOrders(journal, 8);
+        journal.release(4);
+        assertThat(journal.read(4, 0)).hasSize(4);
+
+        // The released first segment is renamed and overwritten from the start, orders 2 to 4 are still behind order 9
+        appendOrders(journal, 1);
+        assertThat(segmentFiles()).containsExactly(name(5), name(9));
+
+        var reopened = open(SEGMENT, 4, 4);
+        assertThat(reopened.appendedSequence()).isEqualTo(9);
+        assertThat(sequences(reopened.read(100, 0))).containsExactly(5L, 6L, 7L, 8L, 9L);
+        assertThat(reopened.append(10, ORDER_DATE, new long[]{1}, new int[]{1})).isEqualTo(10);
+        assertThat(sequences(reopened.read(100, 0))).containsExactly(10L);
+    }
+
+    @Test
+    void dropsTheSegmentsAfterAMissingOne() throws Exception {
+        appendOrders(open(SEGMENT, 0, 0), 12);
+        Files.delete(directory.resolve(name(5)));
+
+        var journal = open(SEGMENT, 0, 0);
+
+        assertThat(segmentFiles()).containsExactly(name(1));
+        assertThat(journal.appendedSequence()).isEqualTo(4);
+        assertThat(journal.append(5, ORDER_DATE, new long[]{1}, new int[]{1})).isEqualTo(5);
+        assertThat(sequences(journal.read(100, 0))).containsExactly(1L, 2L, 3L, 4L, 5L);
+    }
+
+    @Test
+    void dropsTheSegmentsAfterOneThatLostItsTail() throws Exception {
+        appendOrders(open(SEGMENT, 0, 0), 12);
+        corrupt(name(5), 3 * RECORD + 30);
+
+        var journal = open(SEGMENT, 0, 0);
+
+        assertThat(segmentFiles()).containsExactly(name(1), name(5));
+        assertThat(journal.appendedSequence()).isEqualTo(7);
+        assertThat(journal.append(8, ORDER_DATE, new long[]{1}, new int[]{1})).isEqualTo(8);
+        assertThat(sequences(journal.read(100, 0))).containsExactly(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L);
+    }
+
+    @Test
+    void startsAfterTheMinimumWhenTheJournalIsBehindTheDatabase() throws Exception {
+        appendOrders(open(SEGMENT, 0, 0), 3);
+
+        var journal = open(SEGMENT, 10, 10);
+
+        assertThat(segmentFiles()).containsExactly(name(11));
+        assertThat(journal.read(100, 0)).isEmpty();
+        assertThat(journal.append(1, ORDER_DATE, new long[]{1}, new int[]{1})).isEqualTo(11);
+        assertThat(sequences(journal.read(100, 0))).containsExactly(11L);
+    }
+
+    @Test
+    void refusesAppendsOnceFullUntilReleased() throws Exception {
+        var journal = new OrderJournal(directory, SEGMENT, 2 * SEGMENT, 1, 0, 0);
+        appendOrders(journal, 8);
+
+        assertThatThrownBy(() -> appendOrders(journal, 1))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Order journal is full, 8 orders are waiting to be replayed");
+
+        journal.release(4);
+        appendOrders(journal, 1);
+        assertThat(journal.appendedSequence()).isEqualTo(9);
+    }
+
+    @Test
+    void rejectsOrdersLargerThanASegment() throws Exception {
+        var journal = open(SEGMENT, 0, 0);
+
+        assertThatThrownBy(() -> journal.append(1, ORDER_DATE, new long[20], new int[20]))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void concurrentAppendsGetConsecutiveSequences() throws Exception {
+        var journal = open(SEGMENT, 0, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            var appends = new ArrayList<Future<Long>>();
+            for (int i = 0; i < 200; i++) {
+                long userId = i;
+                appends.add(executor.submit(() -> journal.append(userId, ORDER_DATE, new long[]{1}, new int[]{1})));
+            }
+            var sequences = new ArrayList<Long>();
+            for (Future<Long> append : appends) {
+                sequences.add(append.get());
+            }
+            assertThat(sequences).doesNotHaveDuplicates().allMatch(sequence -> sequence >= 1 && sequence <= 200);
+        } finally {
+            executor.shutdown();
+        }
+        List<JournaledOrder> orders = journal.read(1000, 0);
+        assertThat(sequences(orders)).hasSize(200).isSorted();
+        assertThat(orders.stream().map(JournaledOrder::userId).distinct()).hasSize(200);
+    }
+
+    private OrderJournal open(int segmentSize, long replayedSequence, long minimumSequence) throws IOException {
+        return new OrderJournal(directory, segmentSize, 100L * segmentSize, 2, replayedSequence, minimumSequence);
+    }
+
+    private static void appendOrders(OrderJournal journal, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            journal.append(100 + i, ORDER_DATE, new long[]{1}, new int[]{1});
+        }
+    }
+
+    private static List<Long> sequences(List<JournaledOrder> orders) {
+        return orders.stream().map(JournaledOrder::sequence).toList();
+    }
+
+    private static String name(long firstSequence) {
+        return String.format("%020d.segment", firstSequence);
+    }
+
+    private List<String> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    // Flips a byte as a crash in the middle of writing the record would leave it
+    private void corrupt(String segment, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(segment), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var value = ByteBuffer.allocate(1);
+            channel.read(value, position);
+            value.put(0, (byte) ~value.get(0)).rewind();
+            channel.write(value, position);
+        }
+    }
+}
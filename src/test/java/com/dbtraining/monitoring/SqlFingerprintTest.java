@@ -0,0 +1,66 @@
+package com.dbtraining.monitoring;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SqlFingerprintTest {
+
+    @Test
+    void replacesLiteralsAndBindMarkers() {
+        assertThat(SqlFingerprint.of("SELECT * FROM users WHERE id = 42 AND email = 'a''b@c.d' AND name = $1"))
+                .isEqualTo("SELECT * FROM users WHERE id = ? AND email = ? AND name = ?");
+        assertThat(SqlFingerprint.of("SELECT price * 1.5e3 FROM products WHERE id = ?"))
+                .isEqualTo("SELECT price * ? FROM products WHERE id = ?");
+    }
+
+    @Test
+    void keepsDigitsOfIdentifiersAndQuotedIdentifiers() {
+        assertThat(SqlFingerprint.of("SELECT o1_0.id, \"Col 2\" FROM orders o1_0 WHERE o1_0.id = 7"))
+                .isEqualTo("SELECT o1_0.id, \"Col 2\" FROM orders o1_0 WHERE o1_0.id = ?");
+    }
+
+    @Test
+    void dropsCommentsAndWhitespace() {
+        assertThat(SqlFingerprint.of("""
+                /* load user */ SELECT id ,  email -- the address
+                FROM   users
+                WHERE ( id = ? )
+                """))
+                .isEqualTo("SELECT id, email FROM users WHERE (id = ?)");
+    }
+
+    @Test
+    void collapsesInListsOfAnySize() {
+        String one = SqlFingerprint.of("SELECT * FROM products WHERE id IN (1)");
+        String three = SqlFingerprint.of("SELECT * FROM products WHERE id IN (?, ?, ?)");
+        String many = SqlFingerprint.of("SELECT * FROM products WHERE id IN (1, 2, 3, 4, 5, 6, 7, 8)");
+
+        assertThat(one).isEqualTo("SELECT * FROM products WHERE id IN (?)");
+        assertThat(three).isEqualTo("SELECT * FROM products WHERE id IN (?, ...)").isEqualTo(many);
+    }
+
+    @Test
+    void collapsesMultiRowValues() {
+        String two = SqlFingerprint.of("INSERT INTO users (id, email) VALUES (?, ?), (?, ?)");
+        String four = SqlFingerprint.of("INSERT INTO users (id, email) VALUES (1, 'a'), (2, 'b'), (3, 'c'), (4, 'd')");
+
+        assertThat(two).isEqualTo("INSERT INTO users (id, email) VALUES (?, ...), ...").isEqualTo(four);
+    }
+
+    @Test
+    void collapsesIdenticalRowsWithExpressions() {
+        String sql = "INSERT INTO order_items (id, quantity, order_id, product_id) VALUES "
+                + "(nextval('order_item_sequence'), 3, currval('order_sequence'), 17), "
+                + "(nextval('order_item_sequence'), 5, currval('order_sequence'), 99)";
+
+        assertThat(SqlFingerprint.of(sql)).isEqualTo("INSERT INTO order_items (id, quantity, order_id, product_id) VALUES "
+                + "(nextval(?), ?, currval(?), ?), ...");
+    }
+
+    @Test
+    void leavesStatementsWithoutListsAlone() {
+        assertThat(SqlFingerprint.of("UPDATE products SET price = ? WHERE id = ?"))
+                .isEqualTo("UPDATE products SET price = ? WHERE id = ?");
+    }
+}
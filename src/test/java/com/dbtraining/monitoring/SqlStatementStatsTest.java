@@ -0,0 +1,54 @@
+package com.dbtraining.monitoring;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SqlStatementStatsTest {
+
+    private final SqlStatementStats stats = new SqlStatementStats(new SqlStatsProperties(true, 20, 10, Duration.ofSeconds(15)));
+
+    @Test
+    void admitsNoMoreThanTheMaximumUnderConcurrency() throws Exception {
+        var start = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            int offset = t * 100;
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < 100; i++) {
+                    stats.fingerprint("SELECT * FROM t" + (offset + i));
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(stats.size()).isEqualTo(10);
+        assertThat(stats.fingerprint("SELECT * FROM not_admitted")).isEqualTo(SqlStatementStats.OTHER);
+    }
+
+    @Test
+    void resetClearsTheMaximumWithTheHistogram() {
+        String fingerprint = stats.fingerprint("SELECT 1");
+        stats.record(fingerprint, 1, 50_000_000, 1);
+
+        stats.reset();
+        stats.record(fingerprint, 1, 2_000_000, 1);
+
+        var after = stats.top(1).get(0);
+        assertThat(after.calls()).isEqualTo(1);
+        assertThat(after.maxMs()).isEqualTo(2.0);
+        assertThat(after.p99Ms()).isLessThanOrEqualTo(2.0);
+    }
+}
@@ -0,0 +1,163 @@
+package com.dbtraining.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OrderIngestServiceTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final OrderIngestService service = new OrderIngestService(null,
+            new OrderIngestProperties(100, DataSize.ofMegabytes(1), 3, DataSize.ofKilobytes(64)),
+            null, null, objectMapper, new SimpleMeterRegistry());
+
+    @Test
+    void splitsLinesAndKeepsTheLastOneWithoutNewline() throws IOException {
+        var reader = reader("first\n\nsecond\nlast", 100);
+
+        assertThat(lines(reader)).containsExactly("first", "", "second", "last");
+    }
+
+    @Test
+    void doesNotReportAnEmptyLineAfterTheFinalNewline() throws IOException {
+        assertThat(lines(reader("only\n", 100))).containsExactly("only");
+        assertThat(lines(reader("", 100))).isEmpty();
+    }
+
+    @Test
+    void keepsCarriageReturnsForTheParserAndTreatsThemAsBlank() throws IOException {
+        var reader = reader("a\r\n\r\nb\r\n", 100);
+
+        assertThat(reader.next()).isTrue();
+        assertThat(text(reader)).isEqualTo("a\r");
+        assertThat(reader.next()).isTrue();
+        assertThat(reader.isBlank()).isTrue();
+        assertThat(reader.next()).isTrue();
+        assertThat(text(reader)).isEqualTo("b\r");
+        assertThat(reader.next()).isFalse();
+    }
+
+    @Test
+    void flagsOverLongLinesAndResumesAfterThem() throws IOException {
+        var reader = reader("short\n" + "x".repeat(11) + "\nexactly10!\n", 10);
+
+        assertThat(reader.next()).isTrue();
+        assertThat(reader.tooLong).isFalse();
+        assertThat(reader.next()).isTrue();
+        assertThat(reader.tooLong).isTrue();
+        assertThat(reader.next()).isTrue();
+        assertThat(reader.tooLong).isFalse();
+        assertThat(text(reader)).isEqualTo("exactly10!");
+        assertThat(reader.next()).isFalse();
+    }
+
+    @Test
+    void joinsLinesSplitAcrossReadsAndChunks() throws IOException {
+        String longLine = "y".repeat(200 * 1024);
+        byte[] body = ("a\n" + longLine + "\nb").getBytes(StandardCharsets.US_ASCII);
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(body)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+
+        assertThat(lines(new OrderIngestService.LineReader(trickle, 1024 * 1024))).containsExactly("a", longLine, "b");
+        assertThat(lines(reader("a\n" + longLine + "\nb", 100 * 1024))).containsExactly("a", null, "b");
+    }
+
+    @Test
+    void parsesAnOrderWithItems() throws Exception {
+        var items = new ArrayList<OrderIngestService.Item>();
+
+        var order = parse("""
+                {"userId": 7, "orderDate": "2024-03-01T10:15:30", "note": {"x": [1]}, \
+                "items": [{"productId": 3, "quantity": 2}, {"quantity": 1, "productId": 4}]}\r""", items);
+
+        assertThat(order).isEqualTo(new OrderIngestService.ParsedOrder(7, LocalDateTime.of(2024, 3, 1, 10, 15, 30)));
+        assertThat(items).containsExactly(new OrderIngestService.Item(3, 2), new OrderIngestService.Item(4, 1));
+    }
+
+    @Test
+    void defaultsTheOrderDateToNow() throws Exception {
+        LocalDateTime before = LocalDateTime.now();
+
+        var order = parse("{\"userId\": 1, \"items\": [{\"productId\": 1, \"quantity\": 1}]}", new ArrayList<>());
+
+        assertThat(order.orderDate()).isBetween(before, LocalDateTime.now());
+    }
+
+    @Test
+    void rejectsTrailingContent() {
+        assertInvalid("{\"userId\": 1, \"items\": [{\"productId\": 1, \"quantity\": 1}]} {}",
+                "unexpected content after the order object");
+        assertInvalid("[]", "expected an order object");
+    }
+
+    @Test
+    void rejectsInvalidFields() {
+        assertInvalid("{\"items\": [{\"productId\": 1, \"quantity\": 1}]}", "userId is missing");
+        assertInvalid("{\"userId\": 0, \"items\": []}", "userId must be a positive integer");
+        assertInvalid("{\"userId\": 99999999999999999999, \"items\": []}", "userId must be a positive integer");
+        assertInvalid("{\"userId\": 1, \"items\": []}", "an order needs at least one item");
+        assertInvalid("{\"userId\": 1}", "an order needs at least one item");
+        assertInvalid("{\"userId\": 1, \"items\": {}}", "items must be an array");
+        assertInvalid("{\"userId\": 1, \"items\": [1]}", "items must contain objects");
+        assertInvalid("{\"userId\": 1, \"items\": [{\"productId\": 1}]}", "item 1 needs a productId and a quantity");
+        assertInvalid("{\"userId\": 1, \"items\": [{\"productId\": 1, \"quantity\": 3000000000}]}",
+                "quantity 3000000000 is too large");
+        assertInvalid("{\"userId\": 1, \"orderDate\": \"2024-03-01\", \"items\": []}",
+                "orderDate is not an ISO local date-time: 2024-03-01");
+    }
+
+    @Test
+    void limitsTheItemsPerOrder() {
+        String item = "{\"productId\": 1, \"quantity\": 1}";
+        assertInvalid("{\"userId\": 1, \"items\": [" + String.join(",", item, item, item, item) + "]}",
+                "more than 3 items");
+    }
+
+    private static OrderIngestService.LineReader reader(String body, int maxLength) {
+        return new OrderIngestService.LineReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), maxLength);
+    }
+
+    private static String text(OrderIngestService.LineReader reader) {
+        return new String(reader.line, 0, reader.length, StandardCharsets.UTF_8);
+    }
+
+    // Over-long lines show up as null
+    private static List<String> lines(OrderIngestService.LineReader reader) throws IOException {
+        var lines = new ArrayList<String>();
+        while (reader.next()) {
+            lines.add(reader.tooLong ? null : text(reader));
+        }
+        return lines;
+    }
+
+    private OrderIngestService.ParsedOrder parse(String line, List<OrderIngestService.Item> items) throws Exception {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try (JsonParser parser = objectMapper.getFactory().createParser(bytes, 0, bytes.length)) {
+            return service.parseOrder(parser, items);
+        }
+    }
+
+    private void assertInvalid(String line, String message) {
+        assertThatThrownBy(() -> parse(line, new ArrayList<>()))
+                .isInstanceOf(OrderIngestService.InvalidLineException.class)
+                .hasMessage(message);
+    }
+}
@@ -0,0 +1,233 @@
+package com.dbtraining.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+// The waits below spin until the other threads got where the test needs them
+@Timeout(10)
+class SingleFlightTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<Thread> threads = new ArrayList<>();
+
+    @AfterEach
+    void releaseLeaders() throws InterruptedException {
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    void callersArrivingDuringALoadShareItsResult() throws Exception {
+        var flight = singleFlight(true, Duration.ofSeconds(10));
+        var loads = new AtomicInteger();
+        var leader = call(flight, 1L, () -> {
+            loads.incrementAndGet();
+            await(release);
+            return "leader";
+        });
+        awaitInFlight();
+        var follower = call(flight, 1L, () -> "follower");
+        awaitWaiting(follower);
+
+        release.countDown();
+
+        assertThat(leader.result.get(5, TimeUnit.SECONDS)).isEqualTo("leader");
+        assertThat(follower.result.get(5, TimeUnit.SECONDS)).isEqualTo("leader");
+        assertThat(loads).hasValue(1);
+        assertThat(count("leader")).isEqualTo(1);
+        assertThat(count("coalesced")).isEqualTo(1);
+        assertThat(inFlight()).isZero();
+    }
+
+    @Test
+    void otherKeysLoadOnTheirOwn() throws Exception {
+        var flight = singleFlight(true, Duration.ofSeconds(10));
+        call(flight, 1L, () -> {
+            await(release);
+            return "one";
+        });
+        awaitInFlight();
+
+        assertThat(flight.execute(2L, () -> "two")).isEqualTo("two");
+        assertThat(count("leader")).isEqualTo(2);
+    }
+
+    @Test
+    void waitingCallersGetTheLeadersException() throws Exception {
+        var flight = singleFlight(true, Duration.ofSeconds(10));
+        var leader = call(flight, 1L, () -> {
+            await(release);
+            throw new IllegalStateException("load failed");
+        });
+        awaitInFlight();
+        var follower = call(flight, 1L, () -> "follower");
+        awaitWaiting(follower);
+
+        release.countDown();
+
+        assertCause(leader.result, IllegalStateException.class, "load failed");
+        assertCause(follower.result, IllegalStateException.class, "load failed");
+        assertThat(count("coalesced")).isEqualTo(1);
+        // A failed load is not remembered, the next caller tries again
+        assertThat(flight.execute(1L, () -> "retry")).isEqualTo("retry");
+    }
+
+    @Test
+    void errorsReachWaitingCallersUnwrapped() throws Exception {
+        var flight = singleFlight(true, Duration.ofSeconds(10));
+        call(flight, 1L, () -> {
+            await(release);
+            throw new AssertionError("broken");
+        });
+        awaitInFlight();
+        var follower = call(flight, 1L, () -> "follower");
+        awaitWaiting(follower);
+
+        release.countDown();
+
+        assertCause(follower.result, AssertionError.class, "broken");
+    }
+
+    @Test
+    void callersGiveUpWaitingAndLoadOnTheirOwn() throws Exception {
+        var flight = singleFlight(true, Duration.ofMillis(50));
+        var leader = call(flight, 1L, () -> {
+            await(release);
+            return "leader";
+        });
+        awaitInFlight();
+
+        assertThat(flight.execute(1L, () -> "own")).isEqualTo("own");
+        assertThat(count("timeout")).isEqualTo(1);
+        assertThat(count("coalesced")).isZero();
+
+        release.countDown();
+        assertThat(leader.result.get(5, TimeUnit.SECONDS)).isEqualTo("leader");
+    }
+
+    @Test
+    void callersAfterForgetStartANewLoad() throws Exception {
+        var flight = singleFlight(true, Duration.ofSeconds(10));
+        var stale = call(flight, 1L, () -> {
+            await(release);
+            return "stale";
+        });
+        awaitInFlight();
+
+        flight.forget(1L);
+
+        assertThat(inFlight()).isZero();
+        assertThat(flight.execute(1L, () -> "fresh")).isEqualTo("fresh");
+        release.countDown();
+        assertThat(stale.result.get(5, TimeUnit.SECONDS)).isEqualTo("stale");
+        assertThat(count("leader")).isEqualTo(2);
+    }
+
+    @Test
+    void forgetAllDropsEveryRunningLoad() {
+        var flight = singleFlight(true, Duration.ofSeconds(10));
+        call(flight, 1L, () -> {
+            await(release);
+            return "one";
+        });
+        call(flight, 2L, () -> {
+            await(release);
+            return "two";
+        });
+        while (inFlight() < 2) {
+            Thread.onSpinWait();
+        }
+
+        flight.forgetAll();
+
+        assertThat(inFlight()).isZero();
+    }
+
+    @Test
+    void disabledRunsEveryLoad() {
+        var flight = singleFlight(false, Duration.ofSeconds(10));
+        var loads = new AtomicInteger();
+        Supplier<String> loader = () -> "load " + loads.incrementAndGet();
+
+        assertThat(flight.execute(1L, loader)).isEqualTo("load 1");
+        assertThat(flight.execute(1L, loader)).isEqualTo("load 2");
+
+        assertThat(loads).hasValue(2);
+        assertThat(count("leader")).isZero();
+    }
+
+    private record Caller(Thread thread, CompletableFuture<String> result) {}
+
+    private SingleFlight<Long, String> singleFlight(boolean enabled, Duration maxWait) {
+        return new SingleFlight<>("test", new SingleFlightProperties(enabled, maxWait), meterRegistry);
+    }
+
+    private Caller call(SingleFlight<Long, String> flight, long key, Supplier<String> loader) {
+        var result = new CompletableFuture<String>();
+        var thread = Thread.ofPlatform().start(() -> {
+            try {
+                result.complete(flight.execute(key, loader));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        threads.add(thread);
+        return new Caller(thread, result);
+    }
+
+    private double count(String outcome) {
+        return meterRegistry.get("app.single.flight.requests").tag("outcome", outcome).counter().count();
+    }
+
+    private double inFlight() {
+        return meterRegistry.get("app.single.flight.in.flight").gauge().value();
+    }
+
+    private void awaitInFlight() {
+        while (inFlight() == 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    // A follower parks in the timed get on the leader's future
+    private static void awaitWaiting(Caller caller) {
+        while (caller.thread().getState() != Thread.State.TIMED_WAITING) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void assertCause(CompletableFuture<String> result, Class<? extends Throwable> type, String message) {
+        assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .cause()
+                .isExactlyInstanceOf(type)
+                .hasMessage(message);
+    }
+}
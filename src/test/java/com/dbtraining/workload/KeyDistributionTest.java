@@ -0,0 +1,100 @@
+package com.dbtraining.workload;
+
+import com.dbtraining.workload.WorkloadProperties.KeyDistributionType;
+import com.dbtraining.workload.WorkloadProperties.Keys;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.SplittableRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KeyDistributionTest {
+
+    private static final int DRAWS = 100_000;
+
+    @ParameterizedTest
+    @EnumSource(KeyDistributionType.class)
+    void staysWithinBounds(KeyDistributionType type) {
+        for (int size : new int[]{1, 2, 7, 1000}) {
+            var distribution = KeyDistribution.of(new Keys(type, 1.2, 0.1, 0.9), size, 42);
+            var random = new SplittableRandom(1);
+            for (int i = 0; i < DRAWS / 10; i++) {
+                assertThat(distribution.next(random)).isBetween(0, size - 1);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(KeyDistributionType.class)
+    void rejectsAnEmptyKeySpace(KeyDistributionType type) {
+        assertThatThrownBy(() -> KeyDistribution.of(new Keys(type, 1.0, 0.01, 0.8), 0, 42))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void hotspotSendsTheConfiguredShareToTheHotKeys() {
+        var distribution = KeyDistribution.of(new Keys(KeyDistributionType.HOTSPOT, 1.0, 0.01, 0.8), 10_000, 42);
+        int[] counts = draw(distribution);
+
+        long hotKeys = 0;
+        long hotPicks = 0;
+        for (int count : counts) {
+            // A hot key gets about 80 picks, a cold one about 2
+            if (count > 40) {
+                hotKeys++;
+                hotPicks += count;
+            }
+        }
+        assertThat(hotKeys).isEqualTo(100);
+        assertThat(hotPicks / (double) DRAWS).isBetween(0.78, 0.82);
+    }
+
+    @Test
+    void hotspotCoversEveryKeyWhenAllAreHot() {
+        var distribution = KeyDistribution.of(new Keys(KeyDistributionType.HOTSPOT, 1.0, 1.0, 0.5), 10, 42);
+        int[] counts = draw(distribution);
+
+        assertThat(counts).doesNotContain(0);
+    }
+
+    @Test
+    void zipfFavoursTheFirstRanksSpreadOverTheKeys() {
+        var distribution = KeyDistribution.of(new Keys(KeyDistributionType.ZIPF, 1.0, 0.01, 0.8), 1000, 42);
+        int[] counts = draw(distribution);
+
+        int hottest = 0;
+        for (int key = 1; key < counts.length; key++) {
+            if (counts[key] > counts[hottest]) {
+                hottest = key;
+            }
+        }
+        // 1 / H(1000) of the picks, about 13%
+        assertThat(counts[hottest] / (double) DRAWS).isBetween(0.12, 0.15);
+        assertThat(hottest).isNotZero();
+    }
+
+    @Test
+    void sameSeedRanksTheSameKeys() {
+        var keys = new Keys(KeyDistributionType.ZIPF, 1.0, 0.01, 0.8);
+        var first = KeyDistribution.of(keys, 1000, 7);
+        var second = KeyDistribution.of(keys, 1000, 7);
+
+        var random = new SplittableRandom(3);
+        var sameRandom = new SplittableRandom(3);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(first.next(random)).isEqualTo(second.next(sameRandom));
+        }
+    }
+
+    private static int[] draw(KeyDistribution distribution) {
+        int[] counts = new int[distribution.size];
+        var random = new SplittableRandom(1);
+        for (int i = 0; i < DRAWS; i++) {
+            counts[distribution.next(random)]++;
+        }
+        return counts;
+    }
+}